@@ -0,0 +1,236 @@
+package smarticulous;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for the submission path.
+ * <p>
+ * Every submission must be admitted before it is stored. A submission is rejected
+ * immediately, with a retry-after hint, if
+ * <ul>
+ * <li>its user exceeded their token-bucket rate limit ({@code ratePerSecond}
+ * sustained, bursts of up to {@code burst}), or</li>
+ * <li>{@code maxInFlight} submissions are already being stored or waiting for the
+ * database.</li>
+ * </ul>
+ * All state is kept in atomics, so admitting a submission never blocks.
+ */
+public class AdmissionController {
+
+    /**
+     * An admitted submission. Must be closed once the submission has been handled.
+     */
+    public final class Permit implements AutoCloseable {
+        private final long startNanos = System.nanoTime();
+        private boolean closed;
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            inFlight.decrementAndGet();
+            completed.increment();
+            serviceNanos.add(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Number of tracked users above which idle buckets are swept.
+     */
+    private static final int SWEEP_THRESHOLD = 10_000;
+
+    /**
+     * Number of tracked users at which the next sweep runs. After every sweep it is
+     * set to twice the number of buckets left, so a sweep always pays for itself with
+     * as many new buckets as it scanned.
+     */
+    private volatile int sweepAt = SWEEP_THRESHOLD;
+
+    /**
+     * Set while a sweep is running, so that concurrent admissions don't sweep too.
+     */
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * Nanoseconds between tokens.
+     */
+    private final long intervalNanos;
+
+    /**
+     * How far ahead of now a bucket's theoretical arrival time may run before
+     * requests are rejected, i.e. the burst size expressed as time.
+     */
+    private final long burstNanos;
+
+    private final int maxInFlight;
+
+    /**
+     * Per-user theoretical arrival time (the "generic cell rate" form of a token
+     * bucket): the bucket is full when it is in the past, and each admitted request
+     * pushes it one interval further.
+     */
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+
+    /**
+     * @param ratePerSecond sustained submissions per second allowed per user
+     * @param burst         number of submissions a user may make back to back
+     * @param maxInFlight   maximal number of submissions admitted at once, across users
+     */
+    public AdmissionController(double ratePerSecond, int burst, int maxInFlight) {
+        if (ratePerSecond <= 0 || burst < 1 || maxInFlight < 1)
+            throw new IllegalArgumentException("rate, burst and maxInFlight must be positive");
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.burstNanos = intervalNanos * (burst - 1);
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Admit a submission by the given user.
+     *
+     * @param username the submitting user
+     * @return a permit, to be closed when the submission is done
+     * @throws SubmissionRejectedException if the user is over their rate limit or the
+     *                                     system is saturated
+     */
+    public Permit admit(String username) throws SubmissionRejectedException {
+        long now = System.nanoTime();
+
+        // Global cap first, so a rejected request doesn't consume the user's tokens
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxInFlight) {
+                overloaded.increment();
+                throw new SubmissionRejectedException(SubmissionRejectedException.Reason.OVERLOADED,
+                        overloadRetryAfterMillis(current));
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+
+        long waitNanos = takeToken(username, now);
+        if (waitNanos > 0) {
+            inFlight.decrementAndGet();
+            rateLimited.increment();
+            throw new SubmissionRejectedException(SubmissionRejectedException.Reason.RATE_LIMITED,
+                    TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+        }
+        accepted.increment();
+        return new Permit();
+    }
+
+    /**
+     * Take a token from the user's bucket.
+     *
+     * @return 0 if a token was taken, otherwise how long until one is available
+     */
+    private long takeToken(String username, long now) {
+        AtomicLong tat = buckets.get(username);
+        if (tat == null) {
+            if (buckets.size() > sweepAt)
+                sweep(now);
+            tat = buckets.computeIfAbsent(username, u -> new AtomicLong(now));
+        }
+        while (true) {
+            long current = tat.get();
+            long start = current - now < 0 ? now : current;
+            long allowedAt = start - burstNanos;
+            if (allowedAt - now > 0)
+                return allowedAt - now;
+            if (tat.compareAndSet(current, start + intervalNanos)) {
+                // A sweep may have dropped the bucket since it was looked up; put the
+                // token back on the record, or the user would get a fresh bucket
+                if (buckets.get(username) != tat)
+                    restore(username, tat);
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Drop buckets that have refilled completely; they behave exactly like new ones.
+     * <p>
+     * A bucket is only removed if it is still the user's bucket, and if a token was
+     * taken from it around its removal it is put back. Together with the check in
+     * {@link #takeToken} after every token, either this sweep or the taker sees the
+     * other's update, so no token is lost.
+     */
+    private void sweep(long now) {
+        if (!sweeping.compareAndSet(false, true))
+            return;
+        try {
+            for (Map.Entry<String, AtomicLong> e : buckets.entrySet()) {
+                AtomicLong bucket = e.getValue();
+                long tat = bucket.get();
+                if (tat - now <= 0 && buckets.remove(e.getKey(), bucket) && bucket.get() != tat)
+                    restore(e.getKey(), bucket);
+            }
+            sweepAt = Math.max(SWEEP_THRESHOLD, buckets.size() * 2);
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * Put a removed bucket back, merging it with any bucket created for the user in
+     * the meantime by keeping the later theoretical arrival time.
+     */
+    private void restore(String username, AtomicLong removed) {
+        buckets.merge(username, removed, (current, stale) -> {
+            if (current != stale)
+                current.accumulateAndGet(stale.get(), (a, b) -> b - a > 0 ? b : a);
+            return current;
+        });
+    }
+
+    /**
+     * Estimate how long until an in-flight slot frees up: the average service time
+     * times the number of submissions ahead.
+     */
+    private long overloadRetryAfterMillis(int current) {
+        long done = completed.sum();
+        long avgNanos = done == 0 ? TimeUnit.MILLISECONDS.toNanos(10) : serviceNanos.sum() / done;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(avgNanos * (current - maxInFlight + 1)));
+    }
+
+    /**
+     * @return the number of submissions admitted so far.
+     */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * @return the number of submissions rejected because of a per-user rate limit.
+     */
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    /**
+     * @return the number of submissions rejected because the system was saturated.
+     */
+    public long getOverloaded() {
+        return overloaded.sum();
+    }
+
+    /**
+     * @return the number of submissions currently admitted and not yet done.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
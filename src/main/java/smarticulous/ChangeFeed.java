@@ -0,0 +1,414 @@
+package smarticulous;
+
+import smarticulous.db.Change;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A sequenced feed of changes (users, exercises and submissions written through
+ * {@link Smarticulous}), so that integrations can process deltas instead of
+ * scanning tables.
+ * <p>
+ * The feed is an in-memory ring buffer of the most recent {@code capacity} changes.
+ * If a log file is given, every change is also appended to it, and the buffer is
+ * reloaded from it on startup so that sequence numbers survive restarts.
+ * {@link #trim()} drops changes older than the retention period, from memory and
+ * from the file; the rewritten file records the latest sequence number, so numbers
+ * are never reissued even if every change was dropped. A torn last line (from a
+ * crash while appending) is cut off on reload.
+ * <p>
+ * Changes are appended after the database commit they describe, so the feed lags
+ * the database: a crash between the two loses the change, and a consumer that needs
+ * every change must reconcile with the database after a restart. A failure to write
+ * the log doesn't fail the (already committed) write either; it is logged, the
+ * change stays in memory, and the next append rewrites the log from memory.
+ * <p>
+ * Consumers either poll with {@link #readChanges(long, int)} or register a
+ * {@link Listener}.
+ */
+public class ChangeFeed implements AutoCloseable {
+
+    /**
+     * Called for every change appended to the feed, in sequence order and one change
+     * at a time. A change is delivered before the append that produced it returns,
+     * possibly on the thread of a concurrent append.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onChange(Change change);
+    }
+
+    private static final System.Logger LOG = System.getLogger(ChangeFeed.class.getName());
+
+    private final Change[] ring;
+    private final long retentionMillis;
+    private final Path logFile;
+    private BufferedWriter log;
+
+    /**
+     * Set when writing the log failed, so that the next append rewrites it (log may
+     * then be null; otherwise a null log means the feed is closed).
+     */
+    private boolean logFailed;
+
+    /**
+     * Sequence number of the latest change (0 if there are none).
+     */
+    private long latest;
+
+    /**
+     * Sequence number of the oldest change still in the ring.
+     */
+    private long oldest = 1;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Changes not yet delivered to the listeners, queued in sequence order under the
+     * write lock and delivered by whichever append holds the delivery lock.
+     */
+    private final Queue<Change> undelivered = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock deliveryLock = new ReentrantLock();
+
+    /**
+     * Create an in-memory feed.
+     *
+     * @param capacity        how many recent changes to keep
+     * @param retentionMillis how long {@link #trim()} keeps changes
+     */
+    public ChangeFeed(int capacity, long retentionMillis) {
+        this(capacity, retentionMillis, null);
+    }
+
+    /**
+     * Create a feed persisted to a log file, reloading its recent history.
+     *
+     * @param capacity        how many recent changes to keep in memory
+     * @param retentionMillis how long {@link #trim()} keeps changes
+     * @param logFile         the log file (created if missing), or null for in-memory only
+     * @throws UncheckedIOException if the log file can't be read or opened
+     */
+    public ChangeFeed(int capacity, long retentionMillis, Path logFile) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.ring = new Change[capacity];
+        this.retentionMillis = retentionMillis;
+        this.logFile = logFile;
+        if (logFile != null) {
+            try {
+                if (Files.exists(logFile))
+                    load();
+                log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Append a change and notify the listeners. Never fails: the change describes a
+     * write that is already committed.
+     *
+     * @return the new change
+     */
+    Change append(Change.Type type, int id, String username, int exerciseId) {
+        Change change;
+        lock.writeLock().lock();
+        try {
+            change = new Change(latest + 1, System.currentTimeMillis(), type, id, username, exerciseId);
+            put(change);
+            if (logFile != null)
+                writeLog(change);
+            undelivered.add(change);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        deliver();
+        return change;
+    }
+
+    /**
+     * Append a change to the log, or rewrite the log if an earlier append failed, so
+     * that the file never has a gap in its sequence numbers.
+     */
+    private void writeLog(Change change) {
+        // Closed
+        if (log == null && !logFailed)
+            return;
+        try {
+            if (logFailed) {
+                rewriteLog();
+            } else {
+                log.write(format(change));
+                log.newLine();
+                log.flush();
+            }
+            logFailed = false;
+        } catch (IOException e) {
+            logFailed = true;
+            LOG.log(System.Logger.Level.WARNING, "Couldn't write change " + change.sequence + " to " + logFile
+                    + "; the log is rewritten with the next change", e);
+        }
+    }
+
+    /**
+     * Deliver the queued changes to the listeners. The delivery lock makes deliveries
+     * one at a time, and the queue keeps them in sequence order.
+     */
+    private void deliver() {
+        deliveryLock.lock();
+        try {
+            Change change;
+            while ((change = undelivered.poll()) != null) {
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onChange(change);
+                    } catch (RuntimeException e) {
+                        // A failing consumer must not fail the write that produced the change
+                    }
+                }
+            }
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    private void put(Change change) {
+        ring[(int) (change.sequence % ring.length)] = change;
+        latest = change.sequence;
+        if (latest - oldest >= ring.length)
+            oldest = latest - ring.length + 1;
+    }
+
+    /**
+     * Read changes after a given sequence number, oldest first.
+     * <p>
+     * If changes after {@code sinceSequence} were already dropped (by capacity or
+     * retention), the result starts at the oldest change still available; a consumer
+     * can detect the gap because the first sequence is greater than
+     * {@code sinceSequence + 1}.
+     *
+     * @param sinceSequence the last sequence number already processed (0 for all)
+     * @param max           the maximal number of changes to return
+     * @return the changes
+     */
+    public List<Change> readChanges(long sinceSequence, int max) {
+        lock.readLock().lock();
+        try {
+            long from = Math.max(sinceSequence + 1, oldest);
+            long to = Math.min(latest, from + max - 1);
+            List<Change> changes = new ArrayList<>((int) Math.max(0, to - from + 1));
+            for (long seq = from; seq <= to; ++seq)
+                changes.add(ring[(int) (seq % ring.length)]);
+            return changes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the sequence number of the latest change, or 0 if there are none.
+     */
+    public long getLatestSequence() {
+        lock.readLock().lock();
+        try {
+            return latest;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Drop changes older than the retention period, and rewrite the log file to
+     * contain only the changes that are kept.
+     *
+     * @return the number of changes dropped from memory
+     * @throws UncheckedIOException if the log file can't be rewritten
+     */
+    public int trim() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        lock.writeLock().lock();
+        try {
+            long before = oldest;
+            while (oldest <= latest && ring[(int) (oldest % ring.length)].time < cutoff) {
+                ring[(int) (oldest % ring.length)] = null;
+                ++oldest;
+            }
+            if (log != null || logFailed) {
+                rewriteLog();
+                logFailed = false;
+            }
+            return (int) (oldest - before);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the log file with the changes currently in memory (via a temporary file,
+     * so a crash leaves either the old or the new log).
+     */
+    private void rewriteLog() throws IOException {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // A failed writer is replaced anyway
+            }
+            log = null;
+        }
+        Path tmp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(HEADER + latest);
+            out.newLine();
+            for (long seq = oldest; seq <= latest; ++seq) {
+                out.write(format(ring[(int) (seq % ring.length)]));
+                out.newLine();
+            }
+        }
+        Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Reload the tail of the log file into the ring.
+     * <p>
+     * Reading stops at the first line that is incomplete (no line terminator) or
+     * doesn't parse, which can only be a line torn by a crash, and the file is
+     * truncated there, so that new changes are appended after the last good line.
+     */
+    private void load() throws IOException {
+        long good = 0; // offset after the last good line
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(logFile))) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            long offset = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                ++offset;
+                if (b != '\n') {
+                    bytes.write(b);
+                    continue;
+                }
+                String line = bytes.toString(StandardCharsets.UTF_8);
+                bytes.reset();
+                if (line.endsWith("\r"))
+                    line = line.substring(0, line.length() - 1);
+                if (!line.isEmpty() && !loadLine(line))
+                    break;
+                good = offset;
+            }
+        }
+        if (good < Files.size(logFile)) {
+            try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                channel.truncate(good);
+            }
+        }
+    }
+
+    /**
+     * Load one line of the log.
+     *
+     * @return false if the line is corrupt
+     */
+    private boolean loadLine(String line) {
+        if (line.startsWith(HEADER)) {
+            long highWater;
+            try {
+                highWater = Long.parseLong(line.substring(HEADER.length()));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (highWater < latest)
+                return false;
+            // No change is in the ring yet; the following lines (if any) end at highWater
+            latest = highWater;
+            oldest = highWater + 1;
+            return true;
+        }
+        Change change = parse(line);
+        if (change == null)
+            return false;
+        if (oldest > latest)
+            oldest = change.sequence;
+        else if (change.sequence != latest + 1)
+            return false;
+        put(change);
+        return true;
+    }
+
+    // Log lines are tab separated: sequence, time, type, id, username, exerciseId.
+    // A rewritten log starts with a header line: '#', tab, the latest sequence number.
+
+    private static final String HEADER = "#\t";
+
+    private static String format(Change change) {
+        String username = change.username == null ? "" : URLEncoder.encode(change.username, StandardCharsets.UTF_8);
+        return change.sequence + "\t" + change.time + "\t" + change.type + "\t" + change.id + "\t"
+                + username + "\t" + change.exerciseId;
+    }
+
+    private static Change parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 6)
+            return null;
+        try {
+            return new Change(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                    Change.Type.valueOf(fields[2]), Integer.parseInt(fields[3]),
+                    fields[4].isEmpty() ? null : URLDecoder.decode(fields[4], StandardCharsets.UTF_8),
+                    Integer.parseInt(fields[5]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Close the log file.
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            logFailed = false;
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package smarticulous;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bulk rescaling of the grades of an exercise.
+ * <p>
+ * Every question has a factor its grades are multiplied with. In the row format a
+ * range of submissions is rescaled by one set-based UPDATE over QuestionGrade; packed
+ * grade BLOBs can't be transformed in SQL, so in the packed format a range is read,
+ * rescaled and written back as one statement batch. The range functions take the
+ * schema to work on, so an attached archive can be regraded the same way as the main
+ * database; the caller owns the transaction.
+ * <p>
+ * A regrade spans many transactions, so its progress is persisted in the Regrade
+ * table: the factors, the new points (for a change of question points), the highest
+ * submission id to rescale and a watermark below which all submissions are done. The
+ * row is written in the same transaction as the first chunk and advanced with every
+ * chunk, and deleted with the last one, so an interrupted regrade can be resumed
+ * without rescaling any submission twice.
+ * <p>
+ * The main schema is a fixed set of tables, so the Regrade table lives in a state
+ * database next to the main database file (its path plus {@value #FILE_SUFFIX}),
+ * which is attached as schema {@value #SCHEMA} while a regrade runs and whose schema
+ * is {@link Migrations#REGRADE_STATE_MIGRATIONS}. SQLite commits a transaction over
+ * attached databases atomically (with a rollback journal; not in WAL mode), so the
+ * state never disagrees with the grades. The file is deleted once no regrade is
+ * pending; while one is, it belongs with the database like a hot journal does.
+ */
+final class ExerciseRegrade {
+
+    /**
+     * Schema name of the attached state database.
+     */
+    static final String SCHEMA = "regrade";
+
+    /**
+     * Appended to the path of the main database file to get the state database's.
+     */
+    static final String FILE_SUFFIX = "-regrade";
+
+    /**
+     * The persisted progress of one exercise's regrade.
+     */
+    static final class State {
+        final double[] factors;
+        /**
+         * The new points of the questions, or null if only grades are rescaled.
+         */
+        final int[] points;
+        /**
+         * The highest submission id that is rescaled; later submissions are graded
+         * against the new points already.
+         */
+        final long lastSubmissionId;
+        /**
+         * All submissions with ids up to here are rescaled.
+         */
+        long upToSubmissionId;
+
+        State(double[] factors, int[] points, long lastSubmissionId, long upToSubmissionId) {
+            this.factors = factors;
+            this.points = points;
+            this.lastSubmissionId = lastSubmissionId;
+            this.upToSubmissionId = upToSubmissionId;
+        }
+
+        /**
+         * @return true if this is the state of a regrade with the given parameters
+         */
+        boolean matches(double[] factors, int[] points) {
+            return Arrays.equals(this.factors, factors) && Arrays.equals(this.points, points);
+        }
+    }
+
+    private ExerciseRegrade() {
+    }
+
+    /**
+     * Attach the state database, creating and migrating it if necessary. Outside of
+     * any transaction, since SQLite can't attach within one.
+     *
+     * @param db an open connection in auto-commit mode
+     * @throws SQLException if the main database is in WAL mode, where a transaction
+     *                      over attached databases isn't atomic
+     */
+    static void attachState(Connection db) throws SQLException {
+        try (Statement stmt = db.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA main.journal_mode")) {
+            if (rs.next() && "wal".equalsIgnoreCase(rs.getString(1)))
+                throw new SQLException("Resumable regrades need a rollback journal, not WAL mode");
+        }
+        try (PreparedStatement attach = db.prepareStatement("ATTACH DATABASE ? AS " + SCHEMA)) {
+            attach.setString(1, stateFile(db));
+            attach.executeUpdate();
+        }
+        try {
+            Migrations.migrate(db, SCHEMA, Migrations.REGRADE_STATE_MIGRATIONS);
+        } catch (SQLException e) {
+            detachState(db);
+            throw e;
+        }
+    }
+
+    /**
+     * Detach the state database, and delete its file if no regrade is pending.
+     *
+     * @param db an open connection with the state database attached, in auto-commit
+     *           mode
+     * @throws SQLException
+     */
+    static void detachState(Connection db) throws SQLException {
+        String file = stateFile(db);
+        boolean pending = true;
+        try (Statement stmt = db.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT 1 FROM " + SCHEMA + ".Regrade LIMIT 1")) {
+            pending = rs.next();
+        } catch (SQLException e) {
+            // Not migrated; keep the file
+        }
+        try (Statement stmt = db.createStatement()) {
+            stmt.executeUpdate("DETACH DATABASE " + SCHEMA);
+        }
+        if (!pending && !file.isEmpty())
+            new File(file).delete();
+    }
+
+    /**
+     * @return the path of the state database, or "" (a private temporary database)
+     *         if the main database has no file
+     */
+    private static String stateFile(Connection db) throws SQLException {
+        try (Statement stmt = db.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA database_list")) {
+            while (rs.next()) {
+                if ("main".equals(rs.getString("name"))) {
+                    String file = rs.getString("file");
+                    return file == null || file.isEmpty() ? "" : file + FILE_SUFFIX;
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Load the state of an exercise's unfinished regrade.
+     *
+     * @param db         an open connection with the state database attached
+     * @param exerciseId the exercise id
+     * @return the state, or null if no regrade of the exercise is pending
+     * @throws SQLException
+     */
+    static State loadState(Connection db, int exerciseId) throws SQLException {
+        String loadSql = "SELECT Factors, Points, LastSubmissionId, UpToSubmissionId FROM " + SCHEMA + ".Regrade " +
+                "WHERE ExerciseId = ?";
+        try (PreparedStatement stmt = db.prepareStatement(loadSql)) {
+            stmt.setInt(1, exerciseId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next())
+                    return null;
+                ByteBuffer factors = ByteBuffer.wrap(rs.getBytes("Factors")).order(ByteOrder.LITTLE_ENDIAN);
+                double[] f = new double[factors.remaining() / Double.BYTES];
+                factors.asDoubleBuffer().get(f);
+                int[] p = null;
+                byte[] pointBytes = rs.getBytes("Points");
+                if (pointBytes != null) {
+                    ByteBuffer points = ByteBuffer.wrap(pointBytes).order(ByteOrder.LITTLE_ENDIAN);
+                    p = new int[points.remaining() / Integer.BYTES];
+                    points.asIntBuffer().get(p);
+                }
+                return new State(f, p, rs.getLong("LastSubmissionId"), rs.getLong("UpToSubmissionId"));
+            }
+        }
+    }
+
+    /**
+     * Save the state of an exercise's regrade.
+     *
+     * @param db         an open connection with the state database attached
+     * @param exerciseId the exercise id
+     * @param state      the state
+     * @throws SQLException
+     */
+    static void saveState(Connection db, int exerciseId, State state) throws SQLException {
+        ByteBuffer factors = ByteBuffer.allocate(state.factors.length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        factors.asDoubleBuffer().put(state.factors);
+        byte[] points = null;
+        if (state.points != null) {
+            ByteBuffer buf = ByteBuffer.allocate(state.points.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buf.asIntBuffer().put(state.points);
+            points = buf.array();
+        }
+        String saveSql = "INSERT OR REPLACE INTO " + SCHEMA + ".Regrade " +
+                "(ExerciseId, Factors, Points, LastSubmissionId, UpToSubmissionId) VALUES (?, ?, ?, ?, ?)";
+        try (PreparedStatement stmt = db.prepareStatement(saveSql)) {
+            stmt.setInt(1, exerciseId);
+            stmt.setBytes(2, factors.array());
+            stmt.setBytes(3, points);
+            stmt.setLong(4, state.lastSubmissionId);
+            stmt.setLong(5, state.upToSubmissionId);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Delete the state of a finished regrade.
+     *
+     * @param db         an open connection with the state database attached
+     * @param exerciseId the exercise id
+     * @throws SQLException
+     */
+    static void clearState(Connection db, int exerciseId) throws SQLException {
+        try (PreparedStatement stmt = db.prepareStatement("DELETE FROM " + SCHEMA + ".Regrade WHERE ExerciseId = ?")) {
+            stmt.setInt(1, exerciseId);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Find the ids of all submissions of an exercise in the given schemas, in
+     * increasing order.
+     *
+     * @param db         an open connection
+     * @param schemas    "main", and the schema of an attached archive if any
+     * @param exerciseId the exercise id
+     * @return the submission ids
+     * @throws SQLException
+     */
+    static int[] submissionIds(Connection db, List<String> schemas, int exerciseId) throws SQLException {
+        int[] ids = new int[1024];
+        int n = 0;
+        for (String schema : schemas) {
+            String query = "SELECT SubmissionId FROM " + schema + ".Submission WHERE ExerciseId = ?";
+            try (PreparedStatement stmt = db.prepareStatement(query)) {
+                stmt.setInt(1, exerciseId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        if (n == ids.length)
+                            ids = Arrays.copyOf(ids, n * 2);
+                        ids[n++] = rs.getInt(1);
+                    }
+                }
+            }
+        }
+        // Read from the exercise indexes, so not in id order
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Set the points of an exercise's questions.
+     *
+     * @param db         an open connection
+     * @param exerciseId the exercise id
+     * @param points     points[i] is the new points of question i (QuestionId i + 1)
+     * @throws SQLException
+     */
+    static void updatePoints(Connection db, int exerciseId, int[] points) throws SQLException {
+        String updateSql = "UPDATE Question SET Points = ? WHERE ExerciseId = ? AND QuestionId = ?";
+        try (PreparedStatement stmt = db.prepareStatement(updateSql)) {
+            for (int i = 0; i < points.length; ++i) {
+                stmt.setInt(1, points[i]);
+                stmt.setInt(2, exerciseId);
+                stmt.setInt(3, i + 1);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+     * Rescale the grades of the exercise's submissions whose ids are in
+     * [firstId, lastId], in the caller's transaction.
+     *
+     * @param db         an open connection
+     * @param schema     "main", or the schema of an attached archive
+     * @param exerciseId the exercise id
+     * @param firstId    the first submission id of the range
+     * @param lastId     the last submission id of the range
+     * @param factors    factors[i] is the factor for question i (QuestionId i + 1);
+     *                   grades of other questions are left as they are
+     * @param packed     whether the database uses the packed grade format
+     * @return the number of grade rows (or, packed, submissions) updated
+     * @throws SQLException
+     */
+    static int rescaleRange(Connection db, String schema, int exerciseId, int firstId, int lastId,
+            double[] factors, boolean packed) throws SQLException {
+        return packed
+                ? rescalePacked(db, schema, exerciseId, firstId, lastId, factors)
+                : rescaleRows(db, schema, exerciseId, firstId, lastId, factors);
+    }
+
+    private static int rescaleRows(Connection db, String schema, int exerciseId, int firstId, int lastId,
+            double[] factors) throws SQLException {
+        // The IN subquery drives primary key seeks into QuestionGrade
+        StringBuilder update = new StringBuilder("UPDATE ").append(schema)
+                .append(".QuestionGrade SET Grade = Grade * CASE QuestionId");
+        for (int i = 0; i < factors.length; ++i)
+            update.append(" WHEN ").append(i + 1).append(" THEN ?");
+        update.append(" ELSE 1 END WHERE SubmissionId IN (SELECT SubmissionId FROM ").append(schema)
+                .append(".Submission WHERE ExerciseId = ? AND SubmissionId BETWEEN ? AND ?)");
+        try (PreparedStatement stmt = db.prepareStatement(update.toString())) {
+            int param = 1;
+            for (double factor : factors)
+                stmt.setDouble(param++, factor);
+            stmt.setInt(param++, exerciseId);
+            stmt.setInt(param++, firstId);
+            stmt.setInt(param, lastId);
+            return stmt.executeUpdate();
+        }
+    }
+
+    private static int rescalePacked(Connection db, String schema, int exerciseId, int firstId, int lastId,
+            double[] factors) throws SQLException {
+        String readSql = "SELECT SubmissionId, Grades FROM " + schema + ".Submission " +
+                "WHERE ExerciseId = ? AND SubmissionId BETWEEN ? AND ?";
+        String writeSql = "UPDATE " + schema + ".Submission SET Grades = ? WHERE SubmissionId = ?";
+        // The range is read completely before it is written, so the read never sees its own updates
+        List<Integer> ids = new ArrayList<>();
+        List<byte[]> rescaled = new ArrayList<>();
+        try (PreparedStatement read = db.prepareStatement(readSql)) {
+            read.setInt(1, exerciseId);
+            read.setInt(2, firstId);
+            read.setInt(3, lastId);
+            try (ResultSet rs = read.executeQuery()) {
+                while (rs.next()) {
+                    byte[] packed = rs.getBytes("Grades");
+                    if (packed == null)
+                        continue;
+                    float[] grades = PackedGrades.decode(packed, packed.length / PackedGrades.GRADE_BYTES);
+                    for (int i = 0; i < Math.min(grades.length, factors.length); ++i)
+                        grades[i] = (float) (grades[i] * factors[i]);
+                    ids.add(rs.getInt("SubmissionId"));
+                    rescaled.add(PackedGrades.encode(grades));
+                }
+            }
+        }
+        try (PreparedStatement write = db.prepareStatement(writeSql)) {
+            for (int i = 0; i < ids.size(); ++i) {
+                write.setBytes(1, rescaled.get(i));
+                write.setInt(2, ids.get(i));
+                write.addBatch();
+            }
+            write.executeBatch();
+        }
+        return ids.size();
+    }
+}
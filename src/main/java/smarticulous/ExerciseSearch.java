@@ -0,0 +1,243 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.SearchResult;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Full-text search over exercises and questions, backed by two SQLite FTS5 tables.
+ * <p>
+ * The ExerciseSearch table holds one document per exercise: its Name is the exercise
+ * name and its Body the names and descriptions of all its questions. MATCH is
+ * evaluated per row, so searching the documents lets the words of a query be spread
+ * over the exercise name and any of its questions, and yields each exercise at most
+ * once. The QuestionSearch table holds one row per question, with only the question's
+ * own name and description, and is used only to point a result at the question that
+ * matches the whole query, if any. The tables are separate because bm25 weighs terms
+ * by the statistics of the table: question rows in the document table would count
+ * every question's text twice and skew the ranking of exercises.
+ * <p>
+ * The index is opt-in: {@link #enable(Connection)} creates and fills it, and from
+ * then on {@link Smarticulous#addExercise(Exercise)} keeps it in sync.
+ */
+final class ExerciseSearch {
+
+    private ExerciseSearch() {
+    }
+
+    /**
+     * Check whether the search index exists.
+     *
+     * @param db an open connection
+     * @return true if the ExerciseSearch table exists
+     * @throws SQLException
+     */
+    static boolean isEnabled(Connection db) throws SQLException {
+        try (Statement stmt = db.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE name = 'ExerciseSearch'")) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Check whether an existing search index has the current layout. Indexes created
+     * with question rows in the ExerciseSearch table must be rebuilt with
+     * {@link #enable(Connection)}.
+     *
+     * @param db an open connection
+     * @return true if the search tables have the current layout
+     * @throws SQLException
+     */
+    static boolean isCurrent(Connection db) throws SQLException {
+        String query = "SELECT name, sql FROM sqlite_master WHERE name IN ('ExerciseSearch', 'QuestionSearch')";
+        boolean exercises = false;
+        boolean questions = false;
+        try (Statement stmt = db.createStatement();
+                ResultSet rs = stmt.executeQuery(query)) {
+            while (rs.next()) {
+                if (rs.getString("name").equals("QuestionSearch"))
+                    questions = true;
+                else
+                    exercises = !rs.getString("sql").contains("QuestionId");
+            }
+        }
+        return exercises && questions;
+    }
+
+    /**
+     * Create the search index and fill it from the existing exercises and questions.
+     * Rebuilds the index if it already exists. Joins the caller's transaction if one is
+     * open, otherwise runs in its own.
+     *
+     * @param db an open connection
+     * @throws SQLException
+     */
+    static void enable(Connection db) throws SQLException {
+        boolean ownTransaction = db.getAutoCommit();
+        if (ownTransaction)
+            db.setAutoCommit(false);
+        try (Statement stmt = db.createStatement()) {
+            // Dropped rather than emptied, so that an index in an older layout is upgraded
+            stmt.executeUpdate("DROP TABLE IF EXISTS ExerciseSearch");
+            stmt.executeUpdate("DROP TABLE IF EXISTS QuestionSearch");
+            stmt.executeUpdate("CREATE VIRTUAL TABLE ExerciseSearch USING fts5(" +
+                    "ExerciseId UNINDEXED, Name, Body, tokenize = 'porter unicode61')");
+            stmt.executeUpdate("CREATE VIRTUAL TABLE QuestionSearch USING fts5(" +
+                    "ExerciseId UNINDEXED, QuestionId UNINDEXED, Name, Body, tokenize = 'porter unicode61')");
+            stmt.executeUpdate("INSERT INTO ExerciseSearch (ExerciseId, Name, Body) " +
+                    "SELECT e.ExerciseId, e.Name, " +
+                    "(SELECT group_concat(COALESCE(q.Name, '') || char(10) || COALESCE(q.Desc, ''), char(10)) " +
+                    "FROM Question q WHERE q.ExerciseId = e.ExerciseId) FROM Exercise e");
+            stmt.executeUpdate("INSERT INTO QuestionSearch (ExerciseId, QuestionId, Name, Body) " +
+                    "SELECT ExerciseId, QuestionId, Name, Desc FROM Question");
+            if (ownTransaction)
+                db.commit();
+        } catch (SQLException e) {
+            if (ownTransaction)
+                db.rollback();
+            throw e;
+        } finally {
+            if (ownTransaction)
+                db.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Add an exercise document, and the exercise's questions, to the index.
+     * Question ids are 1-based positions, as in the Question table.
+     *
+     * @param db       an open connection
+     * @param exercise the exercise
+     * @throws SQLException
+     */
+    static void index(Connection db, Exercise exercise) throws SQLException {
+        StringBuilder body = new StringBuilder();
+        for (Exercise.Question question : exercise.questions) {
+            if (body.length() > 0)
+                body.append('\n');
+            body.append(question.name != null ? question.name : "").append('\n')
+                    .append(question.desc != null ? question.desc : "");
+        }
+        try (PreparedStatement stmt = db.prepareStatement(
+                "INSERT INTO ExerciseSearch (ExerciseId, Name, Body) VALUES (?, ?, ?)")) {
+            stmt.setInt(1, exercise.id);
+            stmt.setString(2, exercise.name);
+            stmt.setString(3, body.toString());
+            stmt.executeUpdate();
+        }
+        String insertSql = "INSERT INTO QuestionSearch (ExerciseId, QuestionId, Name, Body) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement stmt = db.prepareStatement(insertSql)) {
+            int questionId = 1;
+            for (Exercise.Question question : exercise.questions) {
+                stmt.setInt(1, exercise.id);
+                stmt.setInt(2, questionId++);
+                stmt.setString(3, question.name);
+                stmt.setString(4, question.desc);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+     * Search the index.
+     *
+     * @param db    an open connection
+     * @param text  the search text; every word must match (words match as prefixes)
+     * @param limit the maximal number of results
+     * @return the matches, best first
+     * @throws SQLException
+     */
+    static List<SearchResult> search(Connection db, String text, int limit) throws SQLException {
+        List<SearchResult> results = new ArrayList<>();
+        String match = toMatchExpression(text);
+        if (match.isEmpty())
+            return results;
+
+        // Exercise documents are ranked, so each exercise is one result.
+        // snippet() column -1 picks whichever of Name/Body matched best.
+        String query = "SELECT s.ExerciseId, e.Name AS ExerciseName, " +
+                "snippet(ExerciseSearch, -1, '[', ']', '...', 12) AS Snippet, " +
+                "bm25(ExerciseSearch) AS Rank " +
+                "FROM ExerciseSearch s JOIN Exercise e ON e.ExerciseId = s.ExerciseId " +
+                "WHERE ExerciseSearch MATCH ? " +
+                "ORDER BY Rank LIMIT ?";
+        Map<Integer, SearchResult> byExercise = new HashMap<>();
+        try (PreparedStatement stmt = db.prepareStatement(query)) {
+            stmt.setString(1, match);
+            stmt.setInt(2, limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    SearchResult result = new SearchResult(rs.getInt("ExerciseId"), rs.getString("ExerciseName"),
+                            0, rs.getString("Snippet"), rs.getDouble("Rank"));
+                    results.add(result);
+                    byExercise.put(result.exerciseId, result);
+                }
+            }
+        }
+        locateQuestions(db, match, results, byExercise);
+        return results;
+    }
+
+    /**
+     * Point each result at its best question that matches the whole query on its own;
+     * results whose matches are spread over several fields keep QuestionId 0.
+     */
+    private static void locateQuestions(Connection db, String match, List<SearchResult> results,
+            Map<Integer, SearchResult> byExercise) throws SQLException {
+        Set<Integer> located = new HashSet<>();
+        int chunkSize = Smarticulous.MAX_PARAMETERS - 1;
+        for (int from = 0; from < results.size(); from += chunkSize) {
+            List<SearchResult> chunk = results.subList(from, Math.min(results.size(), from + chunkSize));
+            StringBuilder query = new StringBuilder("SELECT ExerciseId, QuestionId, " +
+                    "snippet(QuestionSearch, -1, '[', ']', '...', 12) AS Snippet " +
+                    "FROM QuestionSearch WHERE QuestionSearch MATCH ? AND ExerciseId IN (");
+            for (int i = 0; i < chunk.size(); ++i)
+                query.append(i == 0 ? "?" : ", ?");
+            query.append(") ORDER BY bm25(QuestionSearch)");
+            try (PreparedStatement stmt = db.prepareStatement(query.toString())) {
+                stmt.setString(1, match);
+                for (int i = 0; i < chunk.size(); ++i)
+                    stmt.setInt(i + 2, chunk.get(i).exerciseId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        int exerciseId = rs.getInt("ExerciseId");
+                        // Best first, so the first question of each exercise wins
+                        if (!located.add(exerciseId))
+                            continue;
+                        SearchResult result = byExercise.get(exerciseId);
+                        result.questionId = rs.getInt("QuestionId");
+                        result.snippet = rs.getString("Snippet");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Turn free text into an FTS5 query: every word becomes a quoted prefix term, so
+     * user input can never be parsed as FTS5 syntax.
+     */
+    static String toMatchExpression(String text) {
+        StringBuilder match = new StringBuilder();
+        for (String word : text.trim().split("\\s+")) {
+            if (word.isEmpty())
+                continue;
+            if (match.length() > 0)
+                match.append(' ');
+            match.append('"').append(word.replace("\"", "\"\"")).append("\"*");
+        }
+        return match.toString();
+    }
+}
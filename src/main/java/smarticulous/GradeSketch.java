@@ -0,0 +1,335 @@
+package smarticulous;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A mergeable streaming quantile sketch (KLL) of grade totals.
+ * <p>
+ * The sketch keeps a small number of items on levels of increasing weight: level 0
+ * holds raw values, and whenever a level is full half of its items (every other one
+ * after sorting) are promoted to the next level with double the weight. With the
+ * default {@code k} of 200 the rank error of {@link #quantile(double)} is about 1.5%
+ * of the count, independent of how many values were added, and the sketch never holds
+ * more than about 3k items.
+ * <p>
+ * Sketches are not thread-safe.
+ */
+public class GradeSketch {
+
+    /**
+     * Default accuracy parameter.
+     */
+    public static final int DEFAULT_K = 200;
+
+    /**
+     * Capacity ratio between a level and the one above it.
+     */
+    private static final double C = 2.0 / 3.0;
+
+    /**
+     * Serialization format version.
+     */
+    private static final int FORMAT = 1;
+
+    private final int k;
+    private double[][] levels = new double[1][];
+    private int[] sizes = new int[1];
+    private long count;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    /**
+     * Pseudo-random state for choosing which half of a level is promoted.
+     */
+    private long random = 0x2545f4914f6cdd1dL;
+
+    /**
+     * Sorted values and cumulative weights for quantile queries; null after an update.
+     */
+    private double[] sortedValues;
+    private long[] cumulativeWeights;
+
+    public GradeSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the accuracy parameter; the rank error is roughly 1/k of the count
+     */
+    public GradeSketch(int k) {
+        if (k < 8 || k > 65535)
+            throw new IllegalArgumentException("k must be in [8, 65535]: " + k);
+        this.k = k;
+        levels[0] = new double[capacity(0)];
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param value the value, not NaN
+     */
+    public void update(double value) {
+        if (Double.isNaN(value))
+            throw new IllegalArgumentException("value is NaN");
+        if (count == 0 || value < min)
+            min = value;
+        if (count == 0 || value > max)
+            max = value;
+        ++count;
+        append(0, value);
+        if (sizes[0] >= capacity(0))
+            compress();
+        sortedValues = null;
+    }
+
+    /**
+     * Add all values of another sketch to this one.
+     *
+     * @param other the other sketch (left unchanged)
+     */
+    public void merge(GradeSketch other) {
+        if (other.count == 0)
+            return;
+        if (count == 0 || other.min < min)
+            min = other.min;
+        if (count == 0 || other.max > max)
+            max = other.max;
+        count += other.count;
+        for (int h = 0; h < other.levels.length; ++h) {
+            for (int i = 0; i < other.sizes[h]; ++i)
+                append(h, other.levels[h][i]);
+        }
+        compress();
+        sortedValues = null;
+    }
+
+    /**
+     * @return the number of values added.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the smallest value added, or NaN if the sketch is empty.
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return the largest value added, or NaN if the sketch is empty.
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @return the number of items retained by the sketch.
+     */
+    public int getRetained() {
+        int retained = 0;
+        for (int size : sizes)
+            retained += size;
+        return retained;
+    }
+
+    /**
+     * Estimate a quantile.
+     *
+     * @param q the quantile, in [0, 1] (0.5 for the median)
+     * @return the estimated value at that quantile, or NaN if the sketch is empty
+     */
+    public double quantile(double q) {
+        if (!(q >= 0 && q <= 1))
+            throw new IllegalArgumentException("q must be in [0, 1]: " + q);
+        if (count == 0)
+            return Double.NaN;
+        if (q == 0)
+            return min;
+        if (q == 1)
+            return max;
+        sort();
+        long total = cumulativeWeights[cumulativeWeights.length - 1];
+        long target = (long) Math.ceil(q * total);
+        int i = Arrays.binarySearch(cumulativeWeights, target);
+        if (i < 0)
+            i = -i - 1;
+        return sortedValues[Math.min(i, sortedValues.length - 1)];
+    }
+
+    /**
+     * Estimate the normalized rank of a value.
+     *
+     * @param value the value
+     * @return the estimated fraction of values that are at most {@code value}
+     */
+    public double rank(double value) {
+        if (count == 0)
+            return Double.NaN;
+        sort();
+        long total = cumulativeWeights[cumulativeWeights.length - 1];
+        int i = Arrays.binarySearch(sortedValues, value);
+        // Index after the last item <= value (binarySearch finds an arbitrary duplicate)
+        i = i < 0 ? -i - 1 : i + 1;
+        while (i < sortedValues.length && sortedValues[i] <= value)
+            ++i;
+        return i == 0 ? 0 : (double) cumulativeWeights[i - 1] / total;
+    }
+
+    /**
+     * Serialize the sketch: format, k, count, min, max, the number of levels, and the
+     * size and items of each level, little-endian.
+     *
+     * @return the serialized sketch
+     */
+    public byte[] toBytes() {
+        int bytes = 4 + 4 + 8 + 8 + 8 + 4 + levels.length * 4 + getRetained() * 8;
+        ByteBuffer buf = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(FORMAT).putInt(k).putLong(count).putDouble(min).putDouble(max).putInt(levels.length);
+        for (int h = 0; h < levels.length; ++h) {
+            buf.putInt(sizes[h]);
+            for (int i = 0; i < sizes[h]; ++i)
+                buf.putDouble(levels[h][i]);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Deserialize a sketch written by {@link #toBytes()}.
+     *
+     * @param bytes the serialized sketch
+     * @return the sketch
+     * @throws IllegalArgumentException if the bytes are not a serialized sketch
+     */
+    public static GradeSketch fromBytes(byte[] bytes) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int format = buf.getInt();
+            if (format != FORMAT)
+                throw new IllegalArgumentException("Unknown sketch format " + format);
+            GradeSketch sketch = new GradeSketch(buf.getInt());
+            sketch.count = buf.getLong();
+            sketch.min = buf.getDouble();
+            sketch.max = buf.getDouble();
+            int numLevels = buf.getInt();
+            if (numLevels < 1 || numLevels > 64)
+                throw new IllegalArgumentException("Bad number of sketch levels " + numLevels);
+            sketch.levels = new double[numLevels][];
+            sketch.sizes = new int[numLevels];
+            for (int h = 0; h < numLevels; ++h) {
+                int size = buf.getInt();
+                if (size < 0 || size > buf.remaining() / 8)
+                    throw new IllegalArgumentException("Bad sketch level size " + size);
+                sketch.levels[h] = new double[Math.max(size, sketch.capacity(h))];
+                for (int i = 0; i < size; ++i)
+                    sketch.levels[h][i] = buf.getDouble();
+                sketch.sizes[h] = size;
+            }
+            return sketch;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated sketch", e);
+        }
+    }
+
+    /**
+     * Capacity of a level: k for the top level, shrinking geometrically towards level 0
+     * (but at least 2).
+     */
+    private int capacity(int level) {
+        int depth = levels.length - 1 - level;
+        return Math.max(2, (int) Math.ceil(k * Math.pow(C, depth)));
+    }
+
+    private void append(int level, double value) {
+        if (level == levels.length) {
+            levels = Arrays.copyOf(levels, level + 1);
+            sizes = Arrays.copyOf(sizes, level + 1);
+            levels[level] = new double[capacity(level)];
+        }
+        if (sizes[level] == levels[level].length)
+            levels[level] = Arrays.copyOf(levels[level], Math.max(2, levels[level].length * 2));
+        levels[level][sizes[level]++] = value;
+    }
+
+    /**
+     * Compact full levels, lowest first, until every level is within its capacity.
+     * Adding a level lowers the capacity of the levels below it, so the levels are
+     * checked again after every compaction.
+     */
+    private void compress() {
+        while (true) {
+            int h = 0;
+            while (h < levels.length && sizes[h] < capacity(h))
+                ++h;
+            if (h == levels.length)
+                return;
+            compact(h);
+        }
+    }
+
+    /**
+     * Promote every other item of a level (after sorting, starting at a random one of
+     * the first two) to the next level. With an odd size the largest item stays behind.
+     */
+    private void compact(int level) {
+        double[] items = levels[level];
+        int size = sizes[level];
+        Arrays.sort(items, 0, size);
+        int offset = nextBit();
+        for (int i = 0; i < size / 2; ++i)
+            append(level + 1, items[2 * i + offset]);
+        // append may have replaced the levels array, but not this level's items
+        if (size % 2 == 1) {
+            items[0] = items[size - 1];
+            sizes[level] = 1;
+        } else {
+            sizes[level] = 0;
+        }
+    }
+
+    private int nextBit() {
+        // xorshift64
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return (int) (random >>> 63);
+    }
+
+    /**
+     * Build the sorted values and cumulative weights (an item on level h stands for
+     * 2^h values).
+     */
+    private void sort() {
+        if (sortedValues != null)
+            return;
+        int n = getRetained();
+        double[] values = new double[n];
+        int[] levelOf = new int[n];
+        Integer[] order = new Integer[n];
+        int i = 0;
+        for (int h = 0; h < levels.length; ++h) {
+            for (int j = 0; j < sizes[h]; ++j) {
+                values[i] = levels[h][j];
+                levelOf[i] = h;
+                order[i] = i;
+                ++i;
+            }
+        }
+        Arrays.sort(order, Comparator.comparingDouble(index -> values[index]));
+        double[] sorted = new double[n];
+        long[] cumulative = new long[n];
+        long weight = 0;
+        for (i = 0; i < n; ++i) {
+            sorted[i] = values[order[i]];
+            weight += 1L << levelOf[order[i]];
+            cumulative[i] = weight;
+        }
+        sortedValues = sorted;
+        cumulativeWeights = cumulative;
+    }
+}
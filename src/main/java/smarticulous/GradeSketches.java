@@ -0,0 +1,228 @@
+package smarticulous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-exercise {@link GradeSketch}es of submission totals (each grade weighted by its
+ * question's points, as when ranking submissions), persisted in the GradeSketch table.
+ * <p>
+ * Each row holds the serialized sketch of an exercise and the largest SubmissionId it
+ * includes. A sketch is loaded lazily, and submissions stored after it was last saved
+ * are added on load, so a sketch that wasn't saved (e.g. after a crash) catches up
+ * with the database. Catching up relies on ids increasing: a sketch that a submission
+ * with an explicit, lower id would slip past is {@link #invalidate invalidated}, and
+ * all sketches are rebuilt when submissions are archived. The table is opt-in:
+ * {@link #enable(Connection, boolean)} creates and fills it.
+ */
+final class GradeSketches {
+
+    /**
+     * The in-memory state of one exercise's sketch.
+     */
+    static final class Entry {
+        final GradeSketch sketch;
+        /**
+         * The largest SubmissionId included in the sketch.
+         */
+        long upToSubmissionId;
+        /**
+         * Whether the sketch changed since it was saved.
+         */
+        boolean dirty;
+
+        Entry(GradeSketch sketch, long upToSubmissionId) {
+            this.sketch = sketch;
+            this.upToSubmissionId = upToSubmissionId;
+        }
+
+        /**
+         * Add a stored submission's total.
+         */
+        void add(int submissionId, double total) {
+            sketch.update(total);
+            upToSubmissionId = Math.max(upToSubmissionId, submissionId);
+            dirty = true;
+        }
+    }
+
+    private GradeSketches() {
+    }
+
+    /**
+     * Check whether the sketch table exists.
+     *
+     * @param db an open connection
+     * @return true if the GradeSketch table exists
+     * @throws SQLException
+     */
+    static boolean isEnabled(Connection db) throws SQLException {
+        try (Statement stmt = db.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE name = 'GradeSketch'")) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Create the sketch table and fill it from all existing submissions, in a single
+     * scan. Rebuilds every sketch if the table already exists. Joins the caller's
+     * transaction if one is open, otherwise runs in its own.
+     *
+     * @param db     an open connection
+     * @param packed whether the database uses the packed grade format
+     * @throws SQLException
+     */
+    static void enable(Connection db, boolean packed) throws SQLException {
+        boolean ownTransaction = db.getAutoCommit();
+        if (ownTransaction)
+            db.setAutoCommit(false);
+        try {
+            try (Statement stmt = db.createStatement()) {
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS GradeSketch (" +
+                        "ExerciseId INTEGER PRIMARY KEY," +
+                        "UpToSubmissionId INTEGER," +
+                        "Sketch BLOB" +
+                        ");");
+                stmt.executeUpdate("DELETE FROM GradeSketch");
+            }
+            Map<Integer, Entry> entries = new HashMap<>();
+            addTotals(db, null, 0, packed, entries);
+            for (Map.Entry<Integer, Entry> e : entries.entrySet())
+                save(db, e.getKey(), e.getValue());
+            if (ownTransaction)
+                db.commit();
+        } catch (SQLException e) {
+            if (ownTransaction)
+                db.rollback();
+            throw e;
+        } finally {
+            if (ownTransaction)
+                db.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Load an exercise's sketch and add the submissions stored since it was saved.
+     *
+     * @param db         an open connection
+     * @param exerciseId the exercise id
+     * @param packed     whether the database uses the packed grade format
+     * @return the sketch state (an empty sketch if the exercise has no submissions)
+     * @throws SQLException
+     */
+    static Entry load(Connection db, int exerciseId, boolean packed) throws SQLException {
+        Entry entry = null;
+        String loadSql = "SELECT UpToSubmissionId, Sketch FROM GradeSketch WHERE ExerciseId = ?";
+        try (PreparedStatement stmt = db.prepareStatement(loadSql)) {
+            stmt.setInt(1, exerciseId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    try {
+                        entry = new Entry(GradeSketch.fromBytes(rs.getBytes("Sketch")), rs.getLong("UpToSubmissionId"));
+                    } catch (IllegalArgumentException e) {
+                        throw new SQLException("Corrupt grade sketch for exercise " + exerciseId, e);
+                    }
+                }
+            }
+        }
+
+        Map<Integer, Entry> entries = new HashMap<>();
+        entries.put(exerciseId, entry != null ? entry : new Entry(new GradeSketch(), 0));
+        addTotals(db, exerciseId, entries.get(exerciseId).upToSubmissionId, packed, entries);
+        return entries.get(exerciseId);
+    }
+
+    /**
+     * Rebuild an exercise's sketch from all its submissions and save it.
+     *
+     * @param db         an open connection
+     * @param exerciseId the exercise id
+     * @param packed     whether the database uses the packed grade format
+     * @return the rebuilt sketch state
+     * @throws SQLException
+     */
+    static Entry rebuild(Connection db, int exerciseId, boolean packed) throws SQLException {
+        Map<Integer, Entry> entries = new HashMap<>();
+        entries.put(exerciseId, new Entry(new GradeSketch(), 0));
+        addTotals(db, exerciseId, 0, packed, entries);
+        Entry entry = entries.get(exerciseId);
+        save(db, exerciseId, entry);
+        return entry;
+    }
+
+    /**
+     * Drop an exercise's saved sketch if it already covers a submission id, so that
+     * the next {@link #load} rebuilds it from all submissions.
+     *
+     * @param db           an open connection
+     * @param exerciseId   the exercise id
+     * @param submissionId the id of a submission that was just stored
+     * @throws SQLException
+     */
+    static void invalidate(Connection db, int exerciseId, int submissionId) throws SQLException {
+        String deleteSql = "DELETE FROM GradeSketch WHERE ExerciseId = ? AND UpToSubmissionId >= ?";
+        try (PreparedStatement stmt = db.prepareStatement(deleteSql)) {
+            stmt.setInt(1, exerciseId);
+            stmt.setInt(2, submissionId);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Save a sketch.
+     *
+     * @param db         an open connection
+     * @param exerciseId the exercise id
+     * @param entry      the sketch state
+     * @throws SQLException
+     */
+    static void save(Connection db, int exerciseId, Entry entry) throws SQLException {
+        String saveSql = "INSERT OR REPLACE INTO GradeSketch (ExerciseId, UpToSubmissionId, Sketch) VALUES (?, ?, ?)";
+        try (PreparedStatement stmt = db.prepareStatement(saveSql)) {
+            stmt.setInt(1, exerciseId);
+            stmt.setLong(2, entry.upToSubmissionId);
+            stmt.setBytes(3, entry.sketch.toBytes());
+            stmt.executeUpdate();
+        }
+        entry.dirty = false;
+    }
+
+    /**
+     * Add the points-weighted totals of the submissions with an id above
+     * {@code afterSubmissionId} to the sketches of their exercises, creating entries as
+     * needed.
+     *
+     * @param exerciseId only read submissions of this exercise, or null for all
+     */
+    private static void addTotals(Connection db, Integer exerciseId, long afterSubmissionId, boolean packed,
+            Map<Integer, Entry> entries) throws SQLException {
+        String where = "WHERE s.SubmissionId > ?" + (exerciseId != null ? " AND s.ExerciseId = ?" : "");
+        String query = packed
+                ? "SELECT s.ExerciseId, s.SubmissionId, s.Grades FROM Submission s " + where
+                // TOTAL is 0.0 for a submission without grades
+                : "SELECT s.ExerciseId, s.SubmissionId, TOTAL(qg.Grade * q.Points) FROM Submission s " +
+                        "LEFT JOIN QuestionGrade qg ON qg.SubmissionId = s.SubmissionId " +
+                        "LEFT JOIN Question q ON q.ExerciseId = s.ExerciseId AND q.QuestionId = qg.QuestionId " +
+                        where + " GROUP BY s.SubmissionId";
+        Map<Integer, int[]> points = packed ? QuestionPoints.load(db, exerciseId) : null;
+        try (PreparedStatement stmt = db.prepareStatement(query)) {
+            stmt.setLong(1, afterSubmissionId);
+            if (exerciseId != null)
+                stmt.setInt(2, exerciseId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    double total = packed
+                            ? PackedGrades.total(rs.getBytes(3), points.getOrDefault(rs.getInt(1), new int[0]))
+                            : rs.getDouble(3);
+                    entries.computeIfAbsent(rs.getInt(1), id -> new Entry(new GradeSketch(), 0))
+                            .add(rs.getInt(2), total);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package smarticulous;
+
+import smarticulous.db.Submission;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded LRU cache of the latest submission per (username, exercise id), used by
+ * {@link Smarticulous#getLastSubmission} and updated write-through by
+ * {@link Smarticulous#storeSubmission}.
+ * <p>
+ * Read-your-writes is guaranteed even with concurrent loads: every write bumps a
+ * generation counter for its key's stripe, and a value loaded from the database is
+ * only cached if no write to that stripe happened while it was being loaded.
+ * <p>
+ * Cached submissions are copied on the way in and out, so callers can't modify the
+ * cached state.
+ */
+public class LatestSubmissionCache {
+
+    private static final int STRIPES = 64;
+
+    /**
+     * A cached lookup result; submission is null if the user has no submission.
+     */
+    private static final class Entry {
+        final Submission submission;
+
+        Entry(Submission submission) {
+            this.submission = submission;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries the maximal number of cached (user, exercise) pairs; the least
+     *                   recently used pair is evicted beyond that
+     */
+    public LatestSubmissionCache(int maxEntries) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("maxEntries must be positive");
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    static String key(String username, int exerciseId) {
+        return exerciseId + ":" + username;
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    /**
+     * Result of {@link #lookup}: either a hit, or a miss together with the generation
+     * to pass to {@link #fill} after loading.
+     */
+    static final class Lookup {
+        final boolean hit;
+        final Submission submission;
+        final long generation;
+
+        Lookup(boolean hit, Submission submission, long generation) {
+            this.hit = hit;
+            this.submission = submission;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Look up the latest submission.
+     *
+     * @return a hit with a copy of the cached submission (possibly null, meaning the
+     *         user has no submission), or a miss
+     */
+    Lookup lookup(String username, int exerciseId) {
+        String key = key(username, exerciseId);
+        // Read the generation before the map: a write after this point invalidates the fill
+        long generation = generations.get(stripe(key));
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                ++hits;
+                return new Lookup(true, copy(entry.submission), generation);
+            }
+            ++misses;
+            return new Lookup(false, null, generation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cache a value loaded from the database after a miss, unless a write to the same
+     * stripe happened since the lookup.
+     *
+     * @param generation the generation returned by the lookup
+     * @param submission the loaded latest submission, or null if there is none
+     */
+    void fill(String username, int exerciseId, long generation, Submission submission) {
+        String key = key(username, exerciseId);
+        lock.lock();
+        try {
+            if (generations.get(stripe(key)) == generation)
+                entries.put(key, new Entry(copy(submission)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write-through of a newly stored submission. The cached entry is replaced if the
+     * new submission is at least as recent; if the key isn't cached, nothing is added
+     * (the next lookup loads it).
+     */
+    void stored(Submission submission) {
+        String key = key(submission.user.username, submission.exercise.id);
+        lock.lock();
+        try {
+            generations.incrementAndGet(stripe(key));
+            Entry entry = entries.get(key);
+            if (entry != null && (entry.submission == null
+                    || !submission.submissionTime.before(entry.submission.submissionTime)))
+                entries.put(key, new Entry(copy(submission)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the cached entry for one (user, exercise) pair, e.g. after its submissions
+     * were changed by something other than {@link Smarticulous#storeSubmission}.
+     */
+    public void invalidate(String username, int exerciseId) {
+        String key = key(username, exerciseId);
+        lock.lock();
+        try {
+            generations.incrementAndGet(stripe(key));
+            entries.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop every cached entry.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            for (int i = 0; i < STRIPES; ++i)
+                generations.incrementAndGet(i);
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of cached (user, exercise) pairs.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of lookups answered from the cache.
+     */
+    public long getHits() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of lookups that had to go to the database.
+     */
+    public long getMisses() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Submission copy(Submission s) {
+        if (s == null)
+            return null;
+        return new Submission(s.id, s.user, s.exercise, new Date(s.submissionTime.getTime()),
+                s.questionGrades == null ? null : s.questionGrades.clone());
+    }
+}
@@ -0,0 +1,228 @@
+package smarticulous;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered, versioned schema migrations for the {@link Smarticulous} database.
+ * <p>
+ * The schema version is recorded in SQLite's {@code PRAGMA user_version}. Opening a
+ * database that is already at {@link #LATEST_VERSION} costs a single pragma read;
+ * otherwise only the missing migrations are applied, inside one transaction (the
+ * caller's, if one is open).
+ * <p>
+ * The main schema is a fixed set of five tables; state that doesn't belong to the
+ * data model lives in a separate database with its own migrations, such as
+ * {@link #REGRADE_STATE_MIGRATIONS}, applied when that database is attached.
+ * <p>
+ * Migrations are append-only: never edit or reorder an existing entry, add a new one
+ * at the end of its list instead.
+ */
+final class Migrations {
+
+    /**
+     * A single schema step, taking the database from {@code version - 1} to
+     * {@code version}.
+     */
+    static final class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+
+    /**
+     * All migrations, in the order they must be applied.
+     */
+    static final List<Migration> MIGRATIONS;
+
+    static {
+        List<Migration> migrations = new ArrayList<>();
+
+        // Version 1: the base schema. IF NOT EXISTS keeps this safe for databases that
+        // were created before user_version was tracked.
+        migrations.add(new Migration(1, "base schema",
+                "CREATE TABLE IF NOT EXISTS User (" +
+                        "UserId INTEGER PRIMARY KEY," +
+                        "Username TEXT UNIQUE," +
+                        "Firstname TEXT," +
+                        "Lastname TEXT," +
+                        "Password TEXT" +
+                        ");",
+                "CREATE TABLE IF NOT EXISTS Exercise (" +
+                        "ExerciseId INTEGER PRIMARY KEY," +
+                        "Name TEXT," +
+                        "DueDate INTEGER" +
+                        ");",
+                "CREATE TABLE IF NOT EXISTS Question (" +
+                        "ExerciseId INTEGER," +
+                        "QuestionId INTEGER," +
+                        "Name TEXT," +
+                        "Desc TEXT," +
+                        "Points INTEGER," +
+                        "PRIMARY KEY (ExerciseId, QuestionId)" +
+                        ");",
+                "CREATE TABLE IF NOT EXISTS Submission (" +
+                        "SubmissionId INTEGER PRIMARY KEY," +
+                        "UserId INTEGER," +
+                        "ExerciseId INTEGER," +
+                        "SubmissionTime INTEGER" +
+                        ");",
+                "CREATE TABLE IF NOT EXISTS QuestionGrade (" +
+                        "SubmissionId INTEGER," +
+                        "QuestionId INTEGER," +
+                        "Grade REAL," +
+                        "PRIMARY KEY (SubmissionId, QuestionId)" +
+                        ");"));
+
+        // Version 2: keyset pagination of submission histories, newest first, per exercise
+        // and across all exercises of a user.
+        migrations.add(new Migration(2, "submission history indexes",
+                "CREATE INDEX IF NOT EXISTS SubmissionUserExerciseTime " +
+                        "ON Submission (UserId, ExerciseId, SubmissionTime, SubmissionId);",
+                "CREATE INDEX IF NOT EXISTS SubmissionUserTime " +
+                        "ON Submission (UserId, SubmissionTime, SubmissionId);"));
+
+        // Version 3: due-date reports scan submissions of an exercise by time.
+        migrations.add(new Migration(3, "submission exercise/time index",
+                "CREATE INDEX IF NOT EXISTS SubmissionExerciseTime " +
+                        "ON Submission (ExerciseId, SubmissionTime);"));
+
+        MIGRATIONS = Collections.unmodifiableList(migrations);
+    }
+
+    /**
+     * The schema version of a fully migrated database.
+     */
+    static final int LATEST_VERSION = MIGRATIONS.size();
+
+    /**
+     * Migrations of the regrade state database, attached as schema
+     * {@value ExerciseRegrade#SCHEMA} (see {@link ExerciseRegrade}).
+     */
+    static final List<Migration> REGRADE_STATE_MIGRATIONS;
+
+    static {
+        List<Migration> migrations = new ArrayList<>();
+
+        // Version 1: the progress of unfinished regrades, one row per exercise.
+        migrations.add(new Migration(1, "regrade progress",
+                "CREATE TABLE IF NOT EXISTS " + ExerciseRegrade.SCHEMA + ".Regrade (" +
+                        "ExerciseId INTEGER PRIMARY KEY," +
+                        "Factors BLOB," +
+                        "Points BLOB," +
+                        "LastSubmissionId INTEGER," +
+                        "UpToSubmissionId INTEGER" +
+                        ");"));
+
+        REGRADE_STATE_MIGRATIONS = Collections.unmodifiableList(migrations);
+    }
+
+    private Migrations() {
+    }
+
+    /**
+     * Read the schema version recorded in the database.
+     *
+     * @param db an open connection
+     * @return the value of {@code PRAGMA user_version} (0 for a new or untracked database)
+     * @throws SQLException
+     */
+    static int currentVersion(Connection db) throws SQLException {
+        return currentVersion(db, "main");
+    }
+
+    private static int currentVersion(Connection db, String schema) throws SQLException {
+        try (Statement stmt = db.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA " + schema + ".user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * @return true if the database has no schema objects at all (a brand new file).
+     */
+    private static boolean isEmpty(Connection db) throws SQLException {
+        try (Statement stmt = db.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master")) {
+            return rs.next() && rs.getInt(1) == 0;
+        }
+    }
+
+    /**
+     * Bring the database schema up to {@link #LATEST_VERSION}.
+     * <p>
+     * If the database is already current nothing but the version pragma is executed.
+     * Otherwise all missing migrations and the version bump are applied in a single
+     * transaction, so a failure leaves the database at its previous version.
+     *
+     * @param db an open connection
+     * @return the number of migrations that were applied
+     * @throws SQLException if a migration fails, or if the database was written by a
+     *                      newer version of the schema than this code knows about
+     */
+    static int migrate(Connection db) throws SQLException {
+        return migrate(db, "main", MIGRATIONS);
+    }
+
+    /**
+     * Bring the schema of a database attached to the connection up to date with a
+     * list of migrations, as {@link #migrate(Connection)} does for the main database.
+     *
+     * @param db         an open connection
+     * @param schema     the schema name of the database
+     * @param migrations the database's migrations
+     * @return the number of migrations that were applied
+     * @throws SQLException
+     */
+    static int migrate(Connection db, String schema, List<Migration> migrations) throws SQLException {
+        int latest = migrations.size();
+        int version = currentVersion(db, schema);
+        // Fast path: an up-to-date database needs no DDL at all
+        if (version == latest)
+            return 0;
+        if (version > latest)
+            throw new SQLException("Database schema version " + version
+                    + " is newer than the supported version " + latest);
+
+        if (schema.equals("main") && version == 0 && isEmpty(db)) {
+            // auto_vacuum can only be chosen before the first table is created; use
+            // incremental mode so archival can hand freed pages back to the file system
+            try (Statement stmt = db.createStatement()) {
+                stmt.executeUpdate("PRAGMA auto_vacuum = INCREMENTAL");
+            }
+        }
+
+        boolean ownTransaction = db.getAutoCommit();
+        if (ownTransaction)
+            db.setAutoCommit(false);
+        try (Statement stmt = db.createStatement()) {
+            for (Migration migration : migrations.subList(version, latest)) {
+                for (String sql : migration.statements)
+                    stmt.executeUpdate(sql);
+            }
+            // PRAGMA does not accept bound parameters; the value is our own constant
+            stmt.executeUpdate("PRAGMA " + schema + ".user_version = " + latest);
+            if (ownTransaction)
+                db.commit();
+        } catch (SQLException e) {
+            if (ownTransaction)
+                db.rollback();
+            throw e;
+        } finally {
+            if (ownTransaction)
+                db.setAutoCommit(true);
+        }
+        return latest - version;
+    }
+}
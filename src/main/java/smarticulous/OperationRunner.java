@@ -0,0 +1,282 @@
+package smarticulous;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs operations on a {@link Smarticulous} instance one at a time, each with a
+ * deadline, synchronously or asynchronously.
+ * <p>
+ * The deadline covers both waiting for the instance (it owns a single connection)
+ * and running the operation. An operation that is still waiting when its deadline
+ * passes fails without running. An operation that is running is interrupted: SQLite's
+ * interrupt is per connection, so cancelling any statement of the connection aborts
+ * the statement in progress, which then fails and rolls back its transaction. Either
+ * way the caller gets an {@link SQLTimeoutException}.
+ * <p>
+ * The runner only knows about the operations it runs. A slow staff query can't hold
+ * up interactive calls beyond their own deadlines only if it runs through the same
+ * runner: a direct call on the {@link Smarticulous} instance neither waits for the
+ * runner nor is interrupted by it.
+ * <p>
+ * Every {@link Smarticulous} method that writes with several statements does so in
+ * one transaction, and updates its in-memory state (caches, filters, the change feed)
+ * only after the commit, so an interrupted write leaves no trace. Regrades and archive
+ * runs commit chunk by chunk; an interrupted one keeps the chunks it committed and is
+ * finished by running it again.
+ * <p>
+ * An interrupt only takes effect while a statement is executing; an operation that
+ * finishes its last statement just as the deadline passes still returns its result.
+ * <p>
+ * Completed, timed out and cancelled operations are counted.
+ */
+public class OperationRunner implements AutoCloseable {
+
+    /**
+     * An operation on a {@link Smarticulous} instance.
+     */
+    @FunctionalInterface
+    public interface Operation<T> {
+        T run(Smarticulous smarticulous) throws SQLException;
+    }
+
+    private final Smarticulous smarticulous;
+    private final long defaultTimeoutMillis;
+
+    /**
+     * Serializes operations. A ReentrantLock rather than synchronized, so that waiting
+     * virtual threads don't pin their carriers, and so that waiting can time out.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "smarticulous-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService async = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+
+    /**
+     * @param smarticulous         the instance to run operations on; it must not be
+     *                             used other than through this runner
+     * @param defaultTimeoutMillis the deadline of operations that don't specify one
+     */
+    public OperationRunner(Smarticulous smarticulous, long defaultTimeoutMillis) {
+        if (defaultTimeoutMillis <= 0)
+            throw new IllegalArgumentException("defaultTimeoutMillis must be positive: " + defaultTimeoutMillis);
+        this.smarticulous = smarticulous;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    /**
+     * Run an operation with the default deadline.
+     *
+     * @see #call(long, Operation)
+     */
+    public <T> T call(Operation<T> operation) throws SQLException {
+        return call(defaultTimeoutMillis, operation);
+    }
+
+    /**
+     * Run an operation on the calling thread.
+     *
+     * @param timeoutMillis the time the operation may take, including waiting for
+     *                      other operations
+     * @param operation     the operation
+     * @return the result of the operation
+     * @throws SQLTimeoutException if the deadline passed
+     * @throws SQLException        if the operation failed, or the calling thread was
+     *                             interrupted while waiting
+     */
+    public <T> T call(long timeoutMillis, Operation<T> operation) throws SQLException {
+        return run(timeoutMillis, operation, new Execution());
+    }
+
+    /**
+     * Run an operation on a virtual thread.
+     * <p>
+     * Cancelling the returned future cancels the operation: it doesn't run if it is
+     * still waiting, and its current statement is interrupted if it is running.
+     *
+     * @param timeoutMillis the time the operation may take, including waiting for
+     *                      other operations
+     * @param operation     the operation
+     * @return the future result; it completes exceptionally with the exceptions of
+     *         {@link #call(long, Operation)}
+     */
+    public <T> CompletableFuture<T> submit(long timeoutMillis, Operation<T> operation) {
+        Execution execution = new Execution();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task = async.submit(() -> {
+            try {
+                result.complete(run(timeoutMillis, operation, execution));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((value, e) -> {
+            if (result.isCancelled()) {
+                if (execution.interrupt(false))
+                    cancelled.increment();
+                // Wakes the task up if it is waiting for the lock
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private <T> T run(long timeoutMillis, Operation<T> operation, Execution execution) throws SQLException {
+        if (timeoutMillis <= 0)
+            throw new IllegalArgumentException("timeoutMillis must be positive: " + timeoutMillis);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timedOut.increment();
+                throw new SQLTimeoutException("Timed out after " + timeoutMillis + " ms waiting for the connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // A cancelled async operation was already counted
+            if (!execution.isCancelled())
+                cancelled.increment();
+            throw new SQLException("Interrupted while waiting for the connection", e);
+        }
+        try {
+            Connection db = smarticulous.db;
+            if (!execution.start(db != null ? db.createStatement() : null))
+                throw new SQLException("Operation was cancelled");
+            ScheduledFuture<?> timeout = timer.schedule(() -> execution.interrupt(true),
+                    deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            try {
+                T result = operation.run(smarticulous);
+                completed.increment();
+                return result;
+            } catch (SQLException e) {
+                if (execution.isTimedOut()) {
+                    timedOut.increment();
+                    throw new SQLTimeoutException("Operation exceeded its deadline of " + timeoutMillis + " ms", e);
+                }
+                if (execution.isCancelled())
+                    throw new SQLException("Operation was cancelled", e);
+                throw e;
+            } finally {
+                timeout.cancel(false);
+                execution.finish();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The interruptible state of one operation. Interrupts are only delivered between
+     * {@link #start} and {@link #finish}, so they never hit another operation.
+     */
+    private static final class Execution {
+        private Statement canceller;
+        private boolean finished;
+        private boolean timedOut;
+        private boolean cancelled;
+
+        /**
+         * @param canceller a statement of the connection, used to interrupt it (null
+         *                  if no DB is open)
+         * @return false if the operation was cancelled before it started
+         */
+        synchronized boolean start(Statement canceller) throws SQLException {
+            if (cancelled) {
+                if (canceller != null)
+                    canceller.close();
+                return false;
+            }
+            this.canceller = canceller;
+            return true;
+        }
+
+        /**
+         * @return true if the operation was interrupted, false if it had already
+         *         finished or been interrupted
+         */
+        synchronized boolean interrupt(boolean timeout) {
+            if (finished || timedOut || cancelled)
+                return false;
+            if (timeout)
+                timedOut = true;
+            else
+                cancelled = true;
+            if (canceller != null) {
+                try {
+                    canceller.cancel();
+                } catch (SQLException e) {
+                    // The connection was closed; nothing left to interrupt
+                }
+            }
+            return true;
+        }
+
+        synchronized void finish() throws SQLException {
+            finished = true;
+            if (canceller != null)
+                canceller.close();
+        }
+
+        synchronized boolean isTimedOut() {
+            return timedOut;
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * @return the number of operations that completed.
+     */
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * @return the number of operations that failed because their deadline passed.
+     */
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    /**
+     * @return the number of operations that were cancelled.
+     */
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+
+    /**
+     * Stop the timer and the async executor, waiting briefly for running operations.
+     * Does not close the DB.
+     */
+    @Override
+    public void close() {
+        async.shutdown();
+        try {
+            async.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,213 @@
+package smarticulous;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * The packed storage format for question grades.
+ * <p>
+ * Instead of one QuestionGrade row per question, the whole grade vector of a
+ * submission is stored in a single BLOB column, Submission.Grades, as consecutive
+ * 4-byte little-endian IEEE-754 floats (so a 12 question submission is 48 bytes, and
+ * storing it is a single B-tree insert).
+ * <p>
+ * The format is opt-in: a database is in packed mode once {@link #enable(Connection)}
+ * has added the Grades column and moved the existing QuestionGrade rows into it.
+ */
+final class PackedGrades {
+
+    /**
+     * Size of one encoded grade, in bytes.
+     */
+    static final int GRADE_BYTES = Float.BYTES;
+
+    /**
+     * Number of submissions converted per statement batch during migration.
+     */
+    private static final int MIGRATION_BATCH = 1000;
+
+    private PackedGrades() {
+    }
+
+    /**
+     * Encode a grade vector.
+     *
+     * @param grades the grades, may be null
+     * @return the packed grades, or null if grades was null
+     */
+    static byte[] encode(float[] grades) {
+        if (grades == null)
+            return null;
+        ByteBuffer buf = ByteBuffer.allocate(grades.length * GRADE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buf.asFloatBuffer().put(grades);
+        return buf.array();
+    }
+
+    /**
+     * Decode a packed grade vector.
+     *
+     * @param packed the packed grades, may be null
+     * @param length the length of the returned array (normally the number of questions);
+     *               missing grades are 0 and extra grades are dropped
+     * @return the grades
+     */
+    static float[] decode(byte[] packed, int length) {
+        float[] grades = new float[length];
+        decodeInto(packed, grades);
+        return grades;
+    }
+
+    /**
+     * Decode a packed grade vector into an existing array.
+     *
+     * @param packed the packed grades, may be null
+     * @param grades the destination; grades beyond the packed length are left untouched
+     * @return the number of grades decoded
+     */
+    static int decodeInto(byte[] packed, float[] grades) {
+        if (packed == null)
+            return 0;
+        int n = Math.min(packed.length / GRADE_BYTES, grades.length);
+        ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(grades, 0, n);
+        return n;
+    }
+
+    /**
+     * Sum a packed grade vector, each grade weighted by its question's points, without
+     * decoding it into an array.
+     *
+     * @param packed the packed grades, may be null
+     * @param points points[i] is the points of question i; grades beyond it don't count
+     * @return the total grade
+     */
+    static double total(byte[] packed, int[] points) {
+        if (packed == null)
+            return 0;
+        ByteBuffer buf = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+        int n = Math.min(packed.length / GRADE_BYTES, points.length);
+        double total = 0;
+        for (int i = 0; i < n; ++i)
+            total += (double) buf.getFloat(i * GRADE_BYTES) * points[i];
+        return total;
+    }
+
+    /**
+     * Check whether the database stores grades in the packed format.
+     *
+     * @param db an open connection
+     * @return true if Submission has a Grades column
+     * @throws SQLException
+     */
+    static boolean isEnabled(Connection db) throws SQLException {
+        try (Statement stmt = db.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA table_info('Submission')")) {
+            while (rs.next()) {
+                if ("Grades".equalsIgnoreCase(rs.getString("name")))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Switch the database to the packed format.
+     * <p>
+     * Adds the Submission.Grades column (if missing), packs the QuestionGrade rows of
+     * every submission into it and deletes those rows, all in one transaction (the
+     * caller's, if one is open).
+     * Calling this on a database that is already packed converts any QuestionGrade
+     * rows that are left over and is otherwise a no-op.
+     *
+     * @param db an open connection
+     * @return the number of submissions whose grades were converted
+     * @throws SQLException
+     */
+    static int enable(Connection db) throws SQLException {
+        boolean ownTransaction = db.getAutoCommit();
+        if (ownTransaction)
+            db.setAutoCommit(false);
+        try {
+            if (!isEnabled(db)) {
+                try (Statement stmt = db.createStatement()) {
+                    stmt.executeUpdate("ALTER TABLE Submission ADD COLUMN Grades BLOB");
+                }
+            }
+            int converted = convertRows(db);
+            if (ownTransaction)
+                db.commit();
+            return converted;
+        } catch (SQLException e) {
+            if (ownTransaction)
+                db.rollback();
+            throw e;
+        } finally {
+            if (ownTransaction)
+                db.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Pack all QuestionGrade rows into Submission.Grades and delete them.
+     * The rows are read in (SubmissionId, QuestionId) primary key order, so each
+     * submission's grades arrive contiguously and in question order.
+     */
+    private static int convertRows(Connection db) throws SQLException {
+        String readSql = "SELECT SubmissionId, QuestionId, Grade FROM QuestionGrade ORDER BY SubmissionId, QuestionId";
+        String writeSql = "UPDATE Submission SET Grades = ? WHERE SubmissionId = ?";
+        int converted = 0;
+        try (Statement read = db.createStatement();
+                ResultSet rs = read.executeQuery(readSql);
+                PreparedStatement write = db.prepareStatement(writeSql)) {
+            int sid = -1;
+            float[] grades = new float[16];
+            int numGrades = 0;
+            while (rs.next()) {
+                int rowSid = rs.getInt("SubmissionId");
+                if (rowSid != sid) {
+                    if (sid != -1) {
+                        addPackedUpdate(write, sid, grades, numGrades);
+                        if (++converted % MIGRATION_BATCH == 0)
+                            write.executeBatch();
+                    }
+                    sid = rowSid;
+                    numGrades = 0;
+                }
+                // QuestionIds are 1-based positions; gaps are left as 0
+                int index = rs.getInt("QuestionId") - 1;
+                if (index < 0)
+                    continue;
+                if (index >= grades.length)
+                    grades = Arrays.copyOf(grades, Math.max(grades.length * 2, index + 1));
+                grades[index] = rs.getFloat("Grade");
+                numGrades = Math.max(numGrades, index + 1);
+            }
+            if (sid != -1) {
+                addPackedUpdate(write, sid, grades, numGrades);
+                ++converted;
+            }
+            write.executeBatch();
+        }
+        try (Statement stmt = db.createStatement()) {
+            stmt.executeUpdate("DELETE FROM QuestionGrade");
+        }
+        return converted;
+    }
+
+    /**
+     * Add the update of one submission's packed grades to the batch, and clear the
+     * grade buffer for the next submission.
+     */
+    private static void addPackedUpdate(PreparedStatement write, int sid, float[] grades, int numGrades)
+            throws SQLException {
+        write.setBytes(1, encode(Arrays.copyOf(grades, numGrades)));
+        write.setInt(2, sid);
+        write.addBatch();
+        Arrays.fill(grades, 0, numGrades, 0f);
+    }
+}
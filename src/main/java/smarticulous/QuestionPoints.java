@@ -0,0 +1,79 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The points of exercise questions, by which grades are weighted whenever submissions
+ * are ranked or summarized by their total grade.
+ * <p>
+ * points[i] is the points of question i (QuestionId i + 1); a grade without a question
+ * counts for nothing, as in the row format's join with Question.
+ */
+final class QuestionPoints {
+
+    private QuestionPoints() {
+    }
+
+    /**
+     * @param exercise an exercise
+     * @return the points of its questions, in question order
+     */
+    static int[] of(Exercise exercise) {
+        int[] points = new int[exercise.questions.size()];
+        for (int i = 0; i < points.length; ++i)
+            points[i] = exercise.questions.get(i).points;
+        return points;
+    }
+
+    /**
+     * Read the points of exercises' questions from the DB.
+     *
+     * @param db         an open connection
+     * @param exerciseId only read this exercise's questions, or null for all
+     * @return the points by exercise id; exercises without questions are absent
+     * @throws SQLException
+     */
+    static Map<Integer, int[]> load(Connection db, Integer exerciseId) throws SQLException {
+        String query = "SELECT ExerciseId, QuestionId, Points FROM Question" +
+                (exerciseId != null ? " WHERE ExerciseId = ?" : "");
+        Map<Integer, int[]> points = new HashMap<>();
+        try (PreparedStatement stmt = db.prepareStatement(query)) {
+            if (exerciseId != null)
+                stmt.setInt(1, exerciseId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int index = rs.getInt("QuestionId") - 1;
+                    if (index < 0)
+                        continue;
+                    int[] exercisePoints = points.getOrDefault(rs.getInt("ExerciseId"), new int[0]);
+                    if (index >= exercisePoints.length)
+                        exercisePoints = Arrays.copyOf(exercisePoints, index + 1);
+                    exercisePoints[index] = rs.getInt("Points");
+                    points.put(rs.getInt("ExerciseId"), exercisePoints);
+                }
+            }
+        }
+        return points;
+    }
+
+    /**
+     * @param grades the grades, may be null
+     * @param points the points of the questions
+     * @return the sum of the grades, each weighted by its question's points
+     */
+    static double total(float[] grades, int[] points) {
+        double total = 0;
+        if (grades != null) {
+            for (int i = 0; i < Math.min(grades.length, points.length); ++i)
+                total += (double) grades[i] * points[i];
+        }
+        return total;
+    }
+}
@@ -1,19 +1,47 @@
 package smarticulous;
 
+import smarticulous.db.Change;
 import smarticulous.db.Exercise;
 import smarticulous.db.Exercise.Question;
+import smarticulous.db.RegradeProgress;
+import smarticulous.db.SearchResult;
 import smarticulous.db.Submission;
+import smarticulous.db.SubmissionFilter;
+import smarticulous.db.SubmissionPage;
+import smarticulous.db.SubmissionView;
+import smarticulous.db.SubmissionVisitor;
 import smarticulous.db.User;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The Smarticulous class, implementing a grading system.
+ * <p>
+ * An instance owns a single connection and is not thread-safe. Its methods have no
+ * deadlines of their own: a call runs until its statements finish. Deadlines and
+ * serialization come from an {@link OperationRunner}, and only cover the calls made
+ * through it; when an instance is shared (e.g. by an
+ * {@link smarticulous.http.ApiServer} and staff tools), every caller must use the
+ * same runner, or a direct call can hold the connection past every deadline.
  */
 public class Smarticulous {
 
+    /**
+     * The maximal number of bound parameters used in one statement (SQLite's
+     * historical default limit).
+     */
+    static final int MAX_PARAMETERS = 999;
+
     /**
      * The connection to the underlying DB.
      * <p>
@@ -21,6 +49,66 @@ public class Smarticulous {
      */
     Connection db;
 
+    /**
+     * Whether the open DB stores grades in the packed format (see {@link PackedGrades}).
+     * <p>
+     * null until first needed, so that opening a database stays a single pragma read.
+     */
+    private Boolean packedGrades;
+
+    /**
+     * Whether the open DB has the exercise search index (see {@link ExerciseSearch});
+     * null until first needed.
+     */
+    private Boolean searchEnabled;
+
+    /**
+     * Whether the open DB keeps grade sketches (see {@link GradeSketches}); null until
+     * first needed.
+     */
+    private Boolean gradeSketchesEnabled;
+
+    /**
+     * Grade sketches loaded so far, by exercise id.
+     */
+    private final Map<Integer, GradeSketches.Entry> gradeSketches = new HashMap<>();
+
+    /**
+     * The snapshot served in read-only mode (see {@link #openSnapshot(Path)}), or null.
+     */
+    private SubmissionSnapshot snapshot;
+
+    /**
+     * Whether an archive DB is attached (see {@link #attachArchive(String)}).
+     */
+    private boolean archiveAttached;
+
+    /**
+     * Admission control for {@link #storeSubmission(Submission)}, or null to admit
+     * every submission.
+     */
+    private volatile AdmissionController admission;
+
+    /**
+     * Feed that writes are recorded in, or null if change tracking is disabled.
+     */
+    private volatile ChangeFeed changeFeed;
+
+    /**
+     * Cache of latest submissions, or null if caching is disabled.
+     */
+    private volatile LatestSubmissionCache latestCache;
+
+    /**
+     * Target false-positive rate of the username filter, or 0 if it is disabled.
+     */
+    private double usernameFilterRate;
+
+    /**
+     * Filter of known usernames (see {@link #enableUsernameFilter(double)}), or null.
+     */
+    private volatile UsernameFilter usernameFilter;
+
     /**
      * Open the {@link Smarticulous} SQLite database.
      * <p>
@@ -163,6 +251,10 @@ public class Smarticulous {
      * Opens the SQLite database with the given JDBC URL. It creates the database if
      * it does not exist and
      * ensures that the required tables are created.
+     * <p>
+     * The schema version is tracked in {@code PRAGMA user_version} (see
+     * {@link Migrations}); only missing migrations are applied, and an up-to-date
+     * database is opened without executing any DDL.
      *
      * @param dburl The JDBC url of the database to open (will be of the form
      *              "jdbc:sqlite:...")
@@ -170,59 +262,25 @@ public class Smarticulous {
      * @throws SQLException
      */
     public Connection openDB(String dburl) throws SQLException {
+        if (snapshot != null)
+            throw new IllegalStateException("A snapshot is open");
         // Get a connection to the database
         db = DriverManager.getConnection(dburl);
+        packedGrades = null;
+        searchEnabled = null;
+        gradeSketchesEnabled = null;
+        gradeSketches.clear();
+        archiveAttached = false;
 
-        // Define SQL statements for creating tables if they do not exist
-        String createUserTableSQL = "CREATE TABLE IF NOT EXISTS User (" +
-                "UserId INTEGER PRIMARY KEY," +
-                "Username TEXT UNIQUE," +
-                "Firstname TEXT," +
-                "Lastname TEXT," +
-                "Password TEXT" +
-                ");";
-
-        String createExerciseTableSQL = "CREATE TABLE IF NOT EXISTS Exercise (" +
-                "ExerciseId INTEGER PRIMARY KEY," +
-                "Name TEXT," +
-                "DueDate INTEGER" +
-                ");";
-
-        String createQuestionTableSQL = "CREATE TABLE IF NOT EXISTS Question (" +
-                "ExerciseId INTEGER," +
-                "QuestionId INTEGER," +
-                "Name TEXT," +
-                "Desc TEXT," +
-                "Points INTEGER," +
-                "PRIMARY KEY (ExerciseId, QuestionId)" +
-                ");";
-
-        String createSubmissionTableSQL = "CREATE TABLE IF NOT EXISTS Submission (" +
-                "SubmissionId INTEGER PRIMARY KEY," +
-                "UserId INTEGER," +
-                "ExerciseId INTEGER," +
-                "SubmissionTime INTEGER" +
-                ");";
-
-        String createQuestionGradeTableSQL = "CREATE TABLE IF NOT EXISTS QuestionGrade (" +
-                "SubmissionId INTEGER," +
-                "QuestionId INTEGER," +
-                "Grade REAL," +
-                "PRIMARY KEY (SubmissionId, QuestionId)" +
-                ");";
-
-        // Execute the SQL statements to create the tables
-        try (Statement stmt = db.createStatement()) {
-            stmt.executeUpdate(createUserTableSQL);
-            stmt.executeUpdate(createExerciseTableSQL);
-            stmt.executeUpdate(createQuestionTableSQL);
-            stmt.executeUpdate(createSubmissionTableSQL);
-            stmt.executeUpdate(createQuestionGradeTableSQL);
-
+        // Apply any missing schema migrations (a single pragma read if already current)
+        try {
+            Migrations.migrate(db);
+            if (usernameFilterRate > 0)
+                usernameFilter = UsernameFilter.build(db, usernameFilterRate);
         } catch (SQLException e) {
-            // Close the connection if an error occurs during table creation
-            if (db != null)
-                db.close();
+            // Close the connection if an error occurs during migration
+            db.close();
+            db = null;
             throw e; // throw the exception
         }
         // Return the open connection
@@ -235,12 +293,127 @@ public class Smarticulous {
      * @throws SQLException
      */
     public void closeDB() throws SQLException {
+        // The mapping is released once the snapshot is garbage collected
+        snapshot = null;
         if (db != null) {
-            db.close();
-            db = null;
+            try {
+                flushGradeSketches();
+            } finally {
+                db.close();
+                db = null;
+            }
+            packedGrades = null;
+            searchEnabled = null;
+            gradeSketchesEnabled = null;
+            gradeSketches.clear();
+            archiveAttached = false;
+            usernameFilter = null;
         }
     }
 
+    /**
+     * Fail unless a DB is open.
+     *
+     * @throws SQLException if no DB is open, e.g. in read-only snapshot mode
+     */
+    private void checkDB() throws SQLException {
+        if (db == null)
+            throw new SQLException(snapshot != null
+                    ? "Not available in read-only snapshot mode"
+                    : "DB connection is not established.");
+    }
+
+    /**
+     * Fail if the caller has a transaction open on the connection, for operations that
+     * commit on their own or update in-memory state that must match what is committed.
+     *
+     * @param operation what can't run, for the message
+     * @throws SQLException if auto-commit is off
+     */
+    private void checkNoTransaction(String operation) throws SQLException {
+        if (!db.getAutoCommit())
+            throw new SQLException(operation + " can't run within a transaction");
+    }
+
+    /**
+     * Switch the open DB to the packed grade format.
+     * <p>
+     * Instead of one QuestionGrade row per question, each submission's grades are
+     * stored as a single little-endian float BLOB in Submission.Grades. The existing
+     * QuestionGrade rows are converted in one transaction. Once enabled the format is
+     * permanent for this database.
+     *
+     * @return the number of submissions whose grades were converted
+     * @throws SQLException if a transaction is open: the format is remembered as soon
+     *                      as it is committed
+     */
+    public int enablePackedGrades() throws SQLException {
+        checkDB();
+        checkNoTransaction("Switching to packed grades");
+        int converted = PackedGrades.enable(db);
+        packedGrades = true;
+        return converted;
+    }
+
+    /**
+     * @return true if the open DB stores grades in the packed format.
+     * @throws SQLException
+     */
+    boolean usesPackedGrades() throws SQLException {
+        if (packedGrades == null)
+            packedGrades = PackedGrades.isEnabled(db);
+        return packedGrades;
+    }
+
+    // =========== Change Feed =============
+
+    /**
+     * Record users, exercises and submissions written through this instance in a
+     * change feed.
+     * <p>
+     * Changes are recorded once they are committed. Writes made inside a transaction
+     * opened by the caller (with auto-commit off) are not recorded, since this
+     * instance can't tell whether the caller commits them. Since the feed is written
+     * after the commit, it can lag the DB (see {@link ChangeFeed}).
+     *
+     * @param changeFeed the feed, or null to stop recording changes
+     */
+    public void setChangeFeed(ChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
+    /**
+     * @return the change feed, or null if change tracking is disabled.
+     */
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Read the changes recorded after the given sequence number.
+     *
+     * @param sinceSequence the last sequence number already processed (0 for all)
+     * @param max           the maximal number of changes to return
+     * @return the changes, oldest first
+     * @throws IllegalStateException if no change feed is set
+     * @see ChangeFeed#readChanges(long, int)
+     */
+    public List<Change> readChanges(long sinceSequence, int max) {
+        ChangeFeed changeFeed = this.changeFeed;
+        if (changeFeed == null)
+            throw new IllegalStateException("No change feed is set");
+        return changeFeed.readChanges(sinceSequence, max);
+    }
+
+    /**
+     * Append a change to the feed, if there is one.
+     */
+    private void recordChange(Change.Type type, int id, String username, int exerciseId) {
+        ChangeFeed changeFeed = this.changeFeed;
+        if (changeFeed != null)
+            changeFeed.append(type, id, username, exerciseId);
+    }
+
     // =========== User Management =============
 
     /**
@@ -273,24 +446,47 @@ public class Smarticulous {
                 "Lastname = excluded.Lastname, " +
                 "Password = excluded.Password;";
         ;
-        try (PreparedStatement prpstmt = db.prepareStatement(insertSql)) {
-            prpstmt.setString(1, user.username);
-            prpstmt.setString(2, user.firstname);
-            prpstmt.setString(3, user.lastname);
-            prpstmt.setString(4, password);
-            prpstmt.executeUpdate(); // Execute the insert or update operation
-        }
-        // Retrieve and return the UserId of the inserted or updated user
-        String idSql = "SELECT UserId FROM User WHERE Username=?";
-        try (PreparedStatement stmt = db.prepareStatement(idSql)) {
-            stmt.setString(1, user.username);
-            try (ResultSet newUserId = stmt.executeQuery()) {
-                if (newUserId.next()) {
-                    return newUserId.getInt("UserId"); // Return the user's ID
+        // The upsert and the id lookup are one transaction (the caller's, if one is
+        // already open), so an interrupt can't separate them
+        int userId = -1;
+        boolean ownTransaction = db.getAutoCommit();
+        if (ownTransaction)
+            db.setAutoCommit(false);
+        try {
+            try (PreparedStatement prpstmt = db.prepareStatement(insertSql)) {
+                prpstmt.setString(1, user.username);
+                prpstmt.setString(2, user.firstname);
+                prpstmt.setString(3, user.lastname);
+                prpstmt.setString(4, password);
+                prpstmt.executeUpdate(); // Execute the insert or update operation
+            }
+            // Retrieve the UserId of the inserted or updated user
+            String idSql = "SELECT UserId FROM User WHERE Username=?";
+            try (PreparedStatement stmt = db.prepareStatement(idSql)) {
+                stmt.setString(1, user.username);
+                try (ResultSet newUserId = stmt.executeQuery()) {
+                    if (newUserId.next())
+                        userId = newUserId.getInt("UserId");
                 }
             }
+            if (ownTransaction)
+                db.commit();
+        } catch (SQLException | RuntimeException e) {
+            if (ownTransaction)
+                db.rollback();
+            throw e;
+        } finally {
+            if (ownTransaction)
+                db.setAutoCommit(true);
+        }
+        if (userId != -1) {
+            // Also inside a caller's transaction: a rolled back user in the filter is only
+            // a false positive, a committed user missing from it would be rejected
+            addToUsernameFilter(user.username);
+            if (ownTransaction)
+                recordChange(Change.Type.USER, userId, user.username, -1);
         }
-        return -1;
+        return userId; // Return the user's ID, or -1
     }
 
     /**
@@ -314,6 +510,11 @@ public class Smarticulous {
             throw new SQLException("DB connection is not established.");
         }
 
+        // Unknown usernames are rejected without a query
+        UsernameFilter usernameFilter = this.usernameFilter;
+        if (usernameFilter != null && !usernameFilter.admit(username))
+            return false;
+
         // SQL query to select the user with the given username and password
         String query = "SELECT COUNT(*) FROM User WHERE Username = ? AND Password = ?";
         try (PreparedStatement stmt = db.prepareStatement(query)) {
@@ -330,6 +531,56 @@ public class Smarticulous {
         return false; // Return false if user not found or any error occurs
     }
 
+    /**
+     * Keep an in-memory Bloom filter of all usernames, so that
+     * {@link #verifyLogin(String, String)} and {@link #storeSubmission(Submission)}
+     * reject unknown usernames without querying the database.
+     * <p>
+     * The filter is built from the User table now (if the DB is open) and whenever a
+     * DB is opened, and it is updated by {@link #addOrUpdateUser(User, String)}. Users
+     * written to the DB by other means are only seen after the filter is rebuilt, by
+     * calling this method again.
+     *
+     * @param falsePositiveRate the target false-positive rate, in (0, 1)
+     * @throws SQLException
+     */
+    public void enableUsernameFilter(double falsePositiveRate) throws SQLException {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("falsePositiveRate must be in (0, 1): " + falsePositiveRate);
+        usernameFilterRate = falsePositiveRate;
+        if (db != null)
+            usernameFilter = UsernameFilter.build(db, falsePositiveRate);
+    }
+
+    /**
+     * Stop filtering usernames.
+     */
+    public void disableUsernameFilter() {
+        usernameFilterRate = 0;
+        usernameFilter = null;
+    }
+
+    /**
+     * @return the username filter, for its statistics, or null if it is disabled or
+     *         the DB is not open.
+     */
+    public UsernameFilter getUsernameFilter() {
+        return usernameFilter;
+    }
+
+    /**
+     * Add a username to the filter, if there is one. A filter that outgrew its capacity
+     * is rebuilt at twice the size, which keeps the rebuild cost amortized.
+     */
+    private void addToUsernameFilter(String username) throws SQLException {
+        UsernameFilter usernameFilter = this.usernameFilter;
+        if (usernameFilter == null)
+            return;
+        usernameFilter.add(username);
+        if (usernameFilter.isSaturated())
+            this.usernameFilter = UsernameFilter.build(db, usernameFilter.getTargetFalsePositiveRate());
+    }
+
     // =========== Exercise Management =============
 
     /**
@@ -341,42 +592,68 @@ public class Smarticulous {
      * @throws SQLException
      */
     public int addExercise(Exercise exercise) throws SQLException {
+        // Ensure the db connection is open (it isn't in read-only snapshot mode)
+        checkDB();
+        // Checked before the transaction starts, since it may rebuild an outdated index
+        boolean search = usesSearch();
         // Initialize the id with -1 to indicate failure by default
         int id = -1;
 
         // SQL query to check if an exercise already exists with the given ID
         String findSql = "SELECT EXISTS (SELECT 1 FROM Exercise WHERE ExerciseId = ?)";
 
-        try (PreparedStatement prpstmt = db.prepareStatement(findSql)) {
-            prpstmt.setInt(1, exercise.id);
-            try (ResultSet rs = prpstmt.executeQuery()) {
-                if (rs.next() && !rs.getBoolean(1)) { // Check if the exercise does not exist
-                    // SQL query to insert a new exercise
-                    String insertSql = "INSERT INTO Exercise (ExerciseId, Name, DueDate) VALUES (?, ?, ?)";
-
-                    try (PreparedStatement insertSt = db.prepareStatement(insertSql)) {
-                        insertSt.setInt(1, exercise.id);
-                        insertSt.setString(2, exercise.name);
-                        insertSt.setLong(3, exercise.dueDate.getTime());
-                        insertSt.executeUpdate();
-                        id = exercise.id; // Set id to the exercise ID indicating success
-                    }
+        // The exercise, its questions and its search entry are written in one transaction
+        boolean ownTransaction = db.getAutoCommit();
+        if (ownTransaction)
+            db.setAutoCommit(false);
+        try {
+            try (PreparedStatement prpstmt = db.prepareStatement(findSql)) {
+                prpstmt.setInt(1, exercise.id);
+                try (ResultSet rs = prpstmt.executeQuery()) {
+                    if (rs.next() && !rs.getBoolean(1)) { // Check if the exercise does not exist
+                        // SQL query to insert a new exercise
+                        String insertSql = "INSERT INTO Exercise (ExerciseId, Name, DueDate) VALUES (?, ?, ?)";
 
-                    // Insert associated questions for the exercise
-                    for (Question question : exercise.questions) {
-                        String insertQuestion = "INSERT INTO Question (ExerciseId, Name, Desc, Points) VALUES (?, ?, ?, ?)";
+                        try (PreparedStatement insertSt = db.prepareStatement(insertSql)) {
+                            insertSt.setInt(1, exercise.id);
+                            insertSt.setString(2, exercise.name);
+                            insertSt.setLong(3, exercise.dueDate.getTime());
+                            insertSt.executeUpdate();
+                            id = exercise.id; // Set id to the exercise ID indicating success
+                        }
 
+                        // Insert associated questions for the exercise. Question ids are the
+                        // 1-based position of the question within the exercise.
+                        String insertQuestion = "INSERT INTO Question (ExerciseId, QuestionId, Name, Desc, Points) VALUES (?, ?, ?, ?, ?)";
                         try (PreparedStatement prpQuestion = db.prepareStatement(insertQuestion)) {
-                            prpQuestion.setInt(1, exercise.id);
-                            prpQuestion.setString(2, question.name);
-                            prpQuestion.setString(3, question.desc);
-                            prpQuestion.setInt(4, question.points);
-                            prpQuestion.executeUpdate();
+                            int questionId = 1;
+                            for (Question question : exercise.questions) {
+                                prpQuestion.setInt(1, exercise.id);
+                                prpQuestion.setInt(2, questionId++);
+                                prpQuestion.setString(3, question.name);
+                                prpQuestion.setString(4, question.desc);
+                                prpQuestion.setInt(5, question.points);
+                                prpQuestion.executeUpdate();
+                            }
                         }
                     }
                 }
             }
+            if (id != -1 && search)
+                ExerciseSearch.index(db, exercise);
+            if (ownTransaction)
+                db.commit();
+        } catch (SQLException | RuntimeException e) {
+            if (ownTransaction)
+                db.rollback();
+            throw e;
+        } finally {
+            if (ownTransaction)
+                db.setAutoCommit(true);
         }
+        // Published once durable; a caller's transaction may still roll back
+        if (id != -1 && ownTransaction)
+            recordChange(Change.Type.EXERCISE, id, null, id);
         // Return the exercise ID if added successfully, or -1 if not
         return id;
     }
@@ -390,6 +667,9 @@ public class Smarticulous {
      * @throws SQLException
      */
     public List<Exercise> loadExercises() throws SQLException {
+        SubmissionSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+            return snapshot.loadExercises();
         List<Exercise> exercises = new ArrayList<>();
 
         // SQL command to retrieve all exercises ordered by their ID
@@ -413,6 +693,77 @@ public class Smarticulous {
         return exercises;
     }
 
+    /**
+     * Create (or rebuild) the full-text search index over exercise names and question
+     * names and descriptions. Once enabled, {@link #addExercise(Exercise)} keeps it in
+     * sync.
+     *
+     * @throws SQLException if a transaction is open: the index is remembered as soon as
+     *                      it is committed
+     */
+    public void enableSearch() throws SQLException {
+        checkDB();
+        checkNoTransaction("Enabling search");
+        ExerciseSearch.enable(db);
+        searchEnabled = true;
+    }
+
+    /**
+     * @return true if the open DB has the exercise search index.
+     * @throws SQLException
+     */
+    boolean usesSearch() throws SQLException {
+        if (searchEnabled == null) {
+            searchEnabled = ExerciseSearch.isEnabled(db);
+            if (searchEnabled && !ExerciseSearch.isCurrent(db))
+                ExerciseSearch.enable(db);
+        }
+        return searchEnabled;
+    }
+
+    /**
+     * Search exercises and questions by text.
+     * <p>
+     * Every word of the text must appear (as a word prefix) in the exercise name, or in
+     * a question's name or description. Results are ranked by relevance (BM25).
+     *
+     * @param text  the search text
+     * @param limit the maximal number of results
+     * @return the matches, best first
+     * @throws SQLException if the search index hasn't been enabled
+     * @see #enableSearch()
+     */
+    public List<SearchResult> searchExercises(String text, int limit) throws SQLException {
+        checkDB();
+        if (!usesSearch())
+            throw new SQLException("Exercise search is not enabled for this database");
+        return ExerciseSearch.search(db, text, limit);
+    }
+
+    /**
+     * Load a single exercise, with its questions, by id.
+     *
+     * @param exerciseId the exercise id
+     * @return the exercise, or null if there is no exercise with this id.
+     * @throws SQLException
+     */
+    public Exercise loadExercise(int exerciseId) throws SQLException {
+        SubmissionSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+            return snapshot.loadExercise(exerciseId);
+        String getExerciseSql = "SELECT Name, DueDate FROM Exercise WHERE ExerciseId = ?";
+        try (PreparedStatement prpstmt = db.prepareStatement(getExerciseSql)) {
+            prpstmt.setInt(1, exerciseId);
+            try (ResultSet rs = prpstmt.executeQuery()) {
+                if (!rs.next())
+                    return null;
+                Exercise exercise = new Exercise(exerciseId, rs.getString("Name"), new Date(rs.getLong("DueDate")));
+                attachQuestionsToExercise(exercise);
+                return exercise;
+            }
+        }
+    }
+
     /**
      * Attaches questions to a given exercise by fetching them from the database.
      * This method queries for all questions associated with the exercise's ID.
@@ -423,7 +774,7 @@ public class Smarticulous {
      */
     private void attachQuestionsToExercise(Exercise exercise) throws SQLException {
         // SQL query to retrieve questions related to a specific exercise
-        String getQuestionsSql = "SELECT Name, Desc, Points FROM Question WHERE ExerciseId = ?";
+        String getQuestionsSql = "SELECT Name, Desc, Points FROM Question WHERE ExerciseId = ? ORDER BY QuestionId";
         try (PreparedStatement prpstmt = db.prepareStatement(getQuestionsSql)) {
             prpstmt.setInt(1, exercise.id); // Setting the exercise ID as the query parameter
             try (ResultSet rsQuestions = prpstmt.executeQuery()) {
@@ -440,62 +791,371 @@ public class Smarticulous {
 
     // ========== Submission Storage ===============
 
+    /**
+     * Put an admission controller in front of {@link #storeSubmission(Submission)}.
+     *
+     * @param admission the controller, or null to disable admission control
+     */
+    public void setAdmissionController(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @return the admission controller, or null if admission control is disabled.
+     */
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+
     /**
      * Store a submission in the database.
      * The id field of the submission will be ignored if it is -1.
      * <p>
      * Return -1 if the corresponding user doesn't exist in the database.
+     * <p>
+     * If an {@link AdmissionController} is set, the submission must be admitted first.
+     * Callers that wait for this instance (e.g. behind an {@link OperationRunner})
+     * should admit the submission themselves before waiting, and call
+     * {@link #storeSubmission(Submission, AdmissionController.Permit)}.
      *
      * @param submission
      * @return the submission id.
+     * @throws SubmissionRejectedException if the submission was not admitted
      * @throws SQLException
      */
     public int storeSubmission(Submission submission) throws SQLException {
+        // Ensure the db connection is open (it isn't in read-only snapshot mode)
+        checkDB();
+        // Unknown usernames are rejected before admission, so they don't use up tokens
+        UsernameFilter usernameFilter = this.usernameFilter;
+        if (usernameFilter != null && !usernameFilter.admit(submission.user.username))
+            return -1;
+        AdmissionController admission = this.admission;
+        if (admission == null)
+            return storeAdmittedSubmission(submission);
+        try (AdmissionController.Permit permit = admission.admit(submission.user.username)) {
+            return storeSubmission(submission, permit);
+        }
+    }
+
+    /**
+     * Store a submission that was already admitted by the {@link AdmissionController}.
+     * <p>
+     * Admitting a submission never blocks, so a caller that has to wait for this
+     * instance admits it first: a saturated system then rejects submissions right away
+     * instead of queueing them for the connection.
+     *
+     * @param submission the submission
+     * @param permit     the permit the submission was admitted with; the caller closes
+     *                   it once this method returns
+     * @return the submission id, or -1 if the user doesn't exist.
+     * @throws SQLException
+     * @see #storeSubmission(Submission)
+     */
+    public int storeSubmission(Submission submission, AdmissionController.Permit permit) throws SQLException {
+        if (permit == null)
+            throw new IllegalArgumentException("permit is null");
+        checkDB();
+        UsernameFilter usernameFilter = this.usernameFilter;
+        if (usernameFilter != null && !usernameFilter.admit(submission.user.username))
+            return -1;
+        return storeAdmittedSubmission(submission);
+    }
+
+    /**
+     * Store a submission that passed admission control.
+     *
+     * @see #storeSubmission(Submission)
+     */
+    private int storeAdmittedSubmission(Submission submission) throws SQLException {
         // Check if the corresponding user exists and get their UserId
         String checkUserSql = "SELECT UserId FROM User WHERE UserName = ?";
+        int userId;
         try (PreparedStatement findUserStmt = db.prepareStatement(checkUserSql)) {
             findUserStmt.setString(1, submission.user.username);
-            ResultSet userResult = findUserStmt.executeQuery();
-            if (!userResult.next() && userResult.getInt(1) == 0)
-                return -1; // Return -1 if the user does not exist
-
-            int userId = userResult.getInt("UserId"); // Retrieve the UserId
-            // Prepare SQL query for inserting the submission
-            String addSubmissionSql = submission.id != -1
-                    ? "INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime) VALUES (?, ?, ?, ?)"
-                    : "INSERT INTO Submission (UserId, ExerciseId, SubmissionTime) VALUES (?, ?, ?)";
-
-            try (PreparedStatement addSubmissionStmt = db.prepareStatement(addSubmissionSql,
-                    PreparedStatement.RETURN_GENERATED_KEYS)) {
-                // Bind parameters to the prepared statement
-                if (submission.id != -1) {
-                    addSubmissionStmt.setInt(1, submission.id);
-                    addSubmissionStmt.setInt(2, userId);
-                    addSubmissionStmt.setInt(3, submission.exercise.id);
-                    addSubmissionStmt.setLong(4, submission.submissionTime.getTime());
-                } else {
-                    addSubmissionStmt.setInt(1, userId);
-                    addSubmissionStmt.setInt(2, submission.exercise.id);
-                    addSubmissionStmt.setLong(3, submission.submissionTime.getTime());
-                }
-
-                // Execute the insert operation
-                addSubmissionStmt.executeUpdate();
+            try (ResultSet userResult = findUserStmt.executeQuery()) {
+                if (!userResult.next())
+                    return -1; // Return -1 if the user does not exist
+                userId = userResult.getInt("UserId"); // Retrieve the UserId
+            }
+        }
 
-                // Attempt to retrieve the generated submission ID, if applicable
-                if (submission.id == -1) {
-                    try (ResultSet generatedKeys = addSubmissionStmt.getGeneratedKeys()) {
-                        if (generatedKeys.next())
-                            return generatedKeys.getInt(1); // Return the new submission ID
+        // The submission row and its grades are written in a single transaction
+        // (the caller's, if one is already open)
+        boolean ownTransaction = db.getAutoCommit();
+        if (ownTransaction)
+            db.setAutoCommit(false);
+        try {
+            // An archived id must not be reused, or archiving would collide with it
+            if (submission.id != -1 && archiveAttached && SubmissionArchive.contains(db, submission.id))
+                throw new SQLException("Submission id " + submission.id + " is taken by an archived submission");
+            int submissionId = insertSubmission(submission, userId);
+            // In the packed format the grades were written with the submission row
+            if (submissionId != -1 && !usesPackedGrades())
+                insertQuestionGrades(submissionId, submission.questionGrades);
+            // A saved sketch only catches up with ids above its watermark, so one that
+            // an explicit id falls below is dropped and rebuilt when next loaded (a
+            // loaded sketch still counts the submission, and is saved again on flush)
+            if (submissionId != -1 && submission.id != -1 && usesGradeSketches())
+                GradeSketches.invalidate(db, submission.exercise.id, submissionId);
+            LatestSubmissionCache latestCache = this.latestCache;
+            // Cached grades have the length a DB read would give, whatever the length
+            // of the submitted array or the question list of the submitted exercise
+            float[] cachedGrades = submissionId != -1 && latestCache != null && ownTransaction
+                    ? normalizeGrades(submission.exercise.id, submission.questionGrades)
+                    : null;
+            // Sketches summarize the points-weighted total, with the points in the DB
+            boolean sketched = submissionId != -1 && ownTransaction
+                    && gradeSketches.containsKey(submission.exercise.id);
+            double sketchTotal = sketched
+                    ? QuestionPoints.total(submission.questionGrades, QuestionPoints.load(db, submission.exercise.id)
+                            .getOrDefault(submission.exercise.id, new int[0]))
+                    : 0;
+            if (ownTransaction)
+                db.commit();
+            // Recorded once the submission is durable
+            if (submissionId != -1) {
+                if (latestCache != null) {
+                    if (ownTransaction) {
+                        latestCache.stored(new Submission(submissionId, submission.user, submission.exercise,
+                                submission.submissionTime, cachedGrades));
+                    } else {
+                        // The caller may still roll back; the next read reloads the entry
+                        latestCache.invalidate(submission.user.username, submission.exercise.id);
+                    }
+                }
+                // Listeners must never see a submission that a caller may still roll back
+                if (ownTransaction)
+                    recordChange(Change.Type.SUBMISSION, submissionId, submission.user.username,
+                            submission.exercise.id);
+                GradeSketches.Entry sketch = gradeSketches.get(submission.exercise.id);
+                if (sketch != null) {
+                    if (ownTransaction) {
+                        sketch.add(submissionId, sketchTotal);
+                    } else {
+                        // The caller may still roll back; the sketch catches up when reloaded
+                        gradeSketches.remove(submission.exercise.id);
                     }
-                } else {
-                    return submission.id; // Return the provided submission ID
                 }
             }
+            return submissionId;
+        } catch (SQLException e) {
+            if (ownTransaction)
+                db.rollback();
+            throw e;
+        } finally {
+            if (ownTransaction)
+                db.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Copy grades to an array with one grade per question of the exercise in the DB,
+     * padding missing grades with 0.
+     *
+     * @param exerciseId the exercise id
+     * @param grades     the grades (may be null)
+     * @return the copy
+     * @throws SQLException
+     */
+    private float[] normalizeGrades(int exerciseId, float[] grades) throws SQLException {
+        int numQuestions = 0;
+        try (PreparedStatement stmt = db.prepareStatement("SELECT COUNT(*) FROM Question WHERE ExerciseId = ?")) {
+            stmt.setInt(1, exerciseId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next())
+                    numQuestions = rs.getInt(1);
+            }
+        }
+        return grades != null ? Arrays.copyOf(grades, numQuestions) : new float[numQuestions];
+    }
+
+    /**
+     * Insert the Submission row for the given submission.
+     *
+     * @param submission the submission to insert
+     * @param userId     the id of the submitting user
+     * @return the submission id, or -1 if the id could not be retrieved.
+     * @throws SQLException
+     */
+    private int insertSubmission(Submission submission, int userId) throws SQLException {
+        boolean packed = usesPackedGrades();
+        // Prepare SQL query for inserting the submission
+        String addSubmissionSql = "INSERT INTO Submission (" +
+                (submission.id != -1 ? "SubmissionId, " : "") +
+                "UserId, ExerciseId, SubmissionTime" +
+                (packed ? ", Grades" : "") +
+                ") VALUES (" +
+                (submission.id != -1 ? "?, " : "") +
+                "?, ?, ?" +
+                (packed ? ", ?" : "") +
+                ")";
+
+        try (PreparedStatement addSubmissionStmt = db.prepareStatement(addSubmissionSql,
+                PreparedStatement.RETURN_GENERATED_KEYS)) {
+            // Bind parameters to the prepared statement
+            int param = 1;
+            if (submission.id != -1)
+                addSubmissionStmt.setInt(param++, submission.id);
+            addSubmissionStmt.setInt(param++, userId);
+            addSubmissionStmt.setInt(param++, submission.exercise.id);
+            addSubmissionStmt.setLong(param++, submission.submissionTime.getTime());
+            if (packed)
+                addSubmissionStmt.setBytes(param, PackedGrades.encode(submission.questionGrades));
+
+            // Execute the insert operation
+            addSubmissionStmt.executeUpdate();
+
+            if (submission.id != -1)
+                return submission.id; // Return the provided submission ID
+
+            // Retrieve the generated submission ID
+            try (ResultSet generatedKeys = addSubmissionStmt.getGeneratedKeys()) {
+                if (generatedKeys.next())
+                    return generatedKeys.getInt(1); // Return the new submission ID
+            }
+        }
+        return -1; // Failed to retrieve the ID
+    }
+
+    /**
+     * Insert one QuestionGrade row per question grade.
+     * questionGrades[i] is stored with QuestionId i + 1.
+     *
+     * @param submissionId   the submission the grades belong to
+     * @param questionGrades the grades, may be null
+     * @throws SQLException
+     */
+    private void insertQuestionGrades(int submissionId, float[] questionGrades) throws SQLException {
+        if (questionGrades == null)
+            return;
+        String insertGradeSql = "INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?, ?, ?)";
+        try (PreparedStatement insertGradeStmt = db.prepareStatement(insertGradeSql)) {
+            for (int i = 0; i < questionGrades.length; ++i) {
+                insertGradeStmt.setInt(1, submissionId);
+                insertGradeStmt.setInt(2, i + 1);
+                insertGradeStmt.setFloat(3, questionGrades[i]);
+                insertGradeStmt.addBatch();
+            }
+            insertGradeStmt.executeBatch();
+        }
+    }
+
+    // ============= Grade Distributions ===============
+
+    /**
+     * Keep a quantile sketch of submission totals per exercise, so that percentiles
+     * of an exercise's grades don't need a scan over its submissions. A total weights
+     * each grade by its question's points, as {@link #getBestSubmission} does.
+     * <p>
+     * Creates the GradeSketch table and builds the sketches of all exercises from the
+     * existing submissions. From then on every submission stored through
+     * {@link #storeSubmission(Submission)} is added to its exercise's sketch. Sketches
+     * are saved by {@link #flushGradeSketches()} and {@link #closeDB()}; submissions
+     * stored since the last save are picked up when a sketch is loaded.
+     *
+     * @throws SQLException if a transaction is open: the sketches are remembered as
+     *                      soon as they are committed
+     */
+    public void enableGradeSketches() throws SQLException {
+        checkDB();
+        checkNoTransaction("Enabling grade sketches");
+        GradeSketches.enable(db, usesPackedGrades());
+        gradeSketchesEnabled = true;
+        gradeSketches.clear();
+    }
+
+    /**
+     * @return true if the open DB keeps grade sketches.
+     * @throws SQLException
+     */
+    boolean usesGradeSketches() throws SQLException {
+        if (gradeSketchesEnabled == null)
+            gradeSketchesEnabled = GradeSketches.isEnabled(db);
+        return gradeSketchesEnabled;
+    }
+
+    /**
+     * Estimate a quantile of the submission totals of an exercise, e.g. 0.5 for the
+     * median or 0.9 for the 90th percentile.
+     * <p>
+     * The estimate's rank error is about 1.5% of the number of submissions; the
+     * minimum (0) and maximum (1) are exact.
+     *
+     * @param exercise the exercise
+     * @param q        the quantile, in [0, 1]
+     * @return the estimated total, or NaN if the exercise has no submissions
+     * @throws SQLException if grade sketches aren't enabled
+     * @see #enableGradeSketches()
+     */
+    public double getGradeQuantile(Exercise exercise, double q) throws SQLException {
+        return loadGradeSketch(exercise.id).sketch.quantile(q);
+    }
+
+    /**
+     * Get a copy of the grade sketch of an exercise, e.g. to merge the sketches of
+     * several exercises.
+     *
+     * @param exercise the exercise
+     * @return the sketch of the exercise's submission totals
+     * @throws SQLException if grade sketches aren't enabled
+     * @see #enableGradeSketches()
+     */
+    public GradeSketch getGradeSketch(Exercise exercise) throws SQLException {
+        return GradeSketch.fromBytes(loadGradeSketch(exercise.id).sketch.toBytes());
+    }
+
+    /**
+     * Save the grade sketches that changed since they were last saved, in one
+     * transaction (the caller's, if one is open). Saved sketches are only a starting
+     * point for loading, which adds the submissions stored since, so a caller that
+     * rolls back loses no grades.
+     *
+     * @throws SQLException
+     */
+    public void flushGradeSketches() throws SQLException {
+        boolean dirty = false;
+        for (GradeSketches.Entry entry : gradeSketches.values())
+            dirty |= entry.dirty;
+        if (!dirty)
+            return;
+
+        boolean ownTransaction = db.getAutoCommit();
+        if (ownTransaction)
+            db.setAutoCommit(false);
+        try {
+            for (Map.Entry<Integer, GradeSketches.Entry> e : gradeSketches.entrySet()) {
+                if (e.getValue().dirty)
+                    GradeSketches.save(db, e.getKey(), e.getValue());
+            }
+            if (ownTransaction)
+                db.commit();
+        } catch (SQLException e) {
+            if (ownTransaction)
+                db.rollback();
+            throw e;
+        } finally {
+            if (ownTransaction)
+                db.setAutoCommit(true);
         }
-        return -1; // Return -1 if failed to insert the submission or retrieve the ID
     }
 
+    /**
+     * @return the loaded sketch of an exercise, loading it if necessary.
+     */
+    private GradeSketches.Entry loadGradeSketch(int exerciseId) throws SQLException {
+        GradeSketches.Entry entry = gradeSketches.get(exerciseId);
+        if (entry != null)
+            return entry;
+        checkDB();
+        if (!usesGradeSketches())
+            throw new SQLException("Grade sketches are not enabled for this database");
+        entry = GradeSketches.load(db, exerciseId, usesPackedGrades());
+        gradeSketches.put(exerciseId, entry);
+        return entry;
+    }
+
+
     // ============= Submission Query ===============
 
     /**
@@ -550,7 +1210,24 @@ public class Smarticulous {
      *
      */
     PreparedStatement getBestSubmissionGradesStatement() throws SQLException {
-        return null;
+        // The subquery ranks the user's submissions by total grade, each question's
+        // grade weighted by its points (latest first on ties); the outer query returns
+        // the grade rows of the winner
+        String query = "SELECT s.SubmissionId, qg.QuestionId, qg.Grade, s.SubmissionTime " +
+                "FROM Submission s " +
+                "JOIN QuestionGrade qg ON s.SubmissionId = qg.SubmissionId " +
+                "WHERE s.SubmissionId = (" +
+                "SELECT bs.SubmissionId FROM Submission bs " +
+                "JOIN User u ON u.UserId = bs.UserId " +
+                "JOIN QuestionGrade bg ON bg.SubmissionId = bs.SubmissionId " +
+                "JOIN Question q ON q.ExerciseId = bs.ExerciseId AND q.QuestionId = bg.QuestionId " +
+                "WHERE u.UserName = ? AND bs.ExerciseId = ? " +
+                "GROUP BY bs.SubmissionId " +
+                "ORDER BY SUM(bg.Grade * q.Points) DESC, bs.SubmissionTime DESC LIMIT 1) " +
+                "ORDER BY qg.QuestionId ASC " +
+                "LIMIT ?";
+        PreparedStatement prpstmt = db.prepareStatement(query);
+        return prpstmt;
     }
 
     /**
@@ -594,11 +1271,33 @@ public class Smarticulous {
         return new Submission(sid, user, exercise, submissionTime, (float[]) grades);
     }
 
+    /**
+     * Cache the results of {@link #getLastSubmission(User, Exercise)}.
+     * <p>
+     * The cache is updated write-through by {@link #storeSubmission(Submission)}, so a
+     * user always sees their own latest submission.
+     *
+     * @param latestCache the cache, or null to disable caching
+     */
+    public void setLatestSubmissionCache(LatestSubmissionCache latestCache) {
+        this.latestCache = latestCache;
+    }
+
+    /**
+     * @return the latest submission cache, or null if caching is disabled.
+     */
+    public LatestSubmissionCache getLatestSubmissionCache() {
+        return latestCache;
+    }
+
     /**
      * Return the latest submission for the given exercise by the given user.
      * <p>
      * Return null if the user has not submitted the exercise (or is not in the
      * database).
+     * <p>
+     * Served from the {@link LatestSubmissionCache}, if one is set, or from the
+     * snapshot in read-only mode.
      *
      * @param user
      * @param exercise
@@ -606,7 +1305,32 @@ public class Smarticulous {
      * @throws SQLException
      */
     public Submission getLastSubmission(User user, Exercise exercise) throws SQLException {
-        return getSubmission(user, exercise, getLastSubmissionGradesStatement());
+        SubmissionSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+            return snapshot.getLastSubmission(user, exercise);
+        LatestSubmissionCache latestCache = this.latestCache;
+        if (latestCache == null)
+            return loadLastSubmission(user, exercise);
+
+        LatestSubmissionCache.Lookup lookup = latestCache.lookup(user.username, exercise.id);
+        if (lookup.hit)
+            return lookup.submission;
+        Submission submission = loadLastSubmission(user, exercise);
+        latestCache.fill(user.username, exercise.id, lookup.generation, submission);
+        return submission;
+    }
+
+    /**
+     * Read the latest submission from the DB, bypassing the cache.
+     *
+     * @see #getLastSubmission(User, Exercise)
+     */
+    private Submission loadLastSubmission(User user, Exercise exercise) throws SQLException {
+        if (usesPackedGrades())
+            return getPackedSubmission(user, exercise, false);
+        try (PreparedStatement stmt = getLastSubmissionGradesStatement()) {
+            return getSubmission(user, exercise, stmt);
+        }
     }
 
     /**
@@ -618,6 +1342,819 @@ public class Smarticulous {
      * @throws SQLException
      */
     public Submission getBestSubmission(User user, Exercise exercise) throws SQLException {
-        return getSubmission(user, exercise, getBestSubmissionGradesStatement());
+        SubmissionSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+            return snapshot.getBestSubmission(user, exercise);
+        if (usesPackedGrades())
+            return getPackedSubmission(user, exercise, true);
+        try (PreparedStatement stmt = getBestSubmissionGradesStatement()) {
+            return getSubmission(user, exercise, stmt);
+        }
+    }
+
+    /**
+     * Return the latest or best submission for the given exercise by the given user,
+     * when the DB is in the packed grade format.
+     * <p>
+     * Each candidate submission is a single row whose Grades BLOB is decoded (or, when
+     * looking for the best submission, summed) directly, without a QuestionGrade join.
+     * As in the row format, the total weights every grade by its question's points.
+     *
+     * @param user     the submitting user
+     * @param exercise the exercise
+     * @param best     true for the submission with the highest points-weighted total
+     *                 grade (the latest one on ties), false for the latest submission
+     * @return the submission, or null if the user has not submitted the exercise.
+     * @throws SQLException
+     */
+    private Submission getPackedSubmission(User user, Exercise exercise, boolean best) throws SQLException {
+        String query = "SELECT SubmissionId, SubmissionTime, Grades FROM Submission " +
+                "WHERE UserId = (SELECT UserId FROM User WHERE Username = ?) AND ExerciseId = ? " +
+                "ORDER BY SubmissionTime DESC, SubmissionId DESC" +
+                (best ? "" : " LIMIT 1");
+        try (PreparedStatement stmt = db.prepareStatement(query)) {
+            stmt.setString(1, user.username);
+            stmt.setInt(2, exercise.id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                int sid = -1;
+                long submissionTime = 0;
+                byte[] grades = null;
+                int[] points = best ? QuestionPoints.of(exercise) : null;
+                double bestTotal = Double.NEGATIVE_INFINITY;
+                while (rs.next()) {
+                    byte[] rowGrades = rs.getBytes("Grades");
+                    double total = best ? PackedGrades.total(rowGrades, points) : 0;
+                    if (sid == -1 || total > bestTotal) {
+                        sid = rs.getInt("SubmissionId");
+                        submissionTime = rs.getLong("SubmissionTime");
+                        grades = rowGrades;
+                        bestTotal = total;
+                    }
+                }
+                if (sid == -1)
+                    return null;
+                return new Submission(sid, user, exercise, new Date(submissionTime),
+                        PackedGrades.decode(grades, exercise.questions.size()));
+            }
+        }
+    }
+
+    /**
+     * Return the latest submission of a user for each of the given exercises, in a
+     * single query.
+     * <p>
+     * This reads the DB directly (the {@link LatestSubmissionCache} is neither used
+     * nor filled).
+     *
+     * @param user      the user
+     * @param exercises the exercises
+     * @return the latest submission by exercise id; exercises the user hasn't
+     *         submitted are absent
+     * @throws SQLException
+     * @see #getLastSubmission(User, Exercise)
+     */
+    public Map<Integer, Submission> getLastSubmissions(User user, Collection<Exercise> exercises)
+            throws SQLException {
+        Map<Integer, Submission> latest = getLastSubmissions(Collections.singletonList(user), exercises)
+                .get(user.username);
+        return latest != null ? latest : new HashMap<>();
+    }
+
+    /**
+     * Return the latest submission of each of the given users for each of the given
+     * exercises.
+     * <p>
+     * Each (user, exercise) pair is a seek on the SubmissionUserExerciseTime index;
+     * users are read in as few queries as the parameter limit allows.
+     *
+     * @param users     the users
+     * @param exercises the exercises
+     * @return the latest submissions by username and exercise id; users without any
+     *         of the exercises submitted are absent
+     * @throws SQLException
+     */
+    public Map<String, Map<Integer, Submission>> getLastSubmissions(Collection<User> users,
+            Collection<Exercise> exercises) throws SQLException {
+        SubmissionSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+            return snapshot.getLastSubmissions(users, exercises);
+        Map<String, User> byName = new LinkedHashMap<>();
+        for (User user : users)
+            byName.put(user.username, user);
+        Map<Integer, Exercise> byId = new LinkedHashMap<>();
+        for (Exercise exercise : exercises)
+            byId.put(exercise.id, exercise);
+
+        Map<String, Map<Integer, Submission>> latest = new HashMap<>();
+        List<User> userList = new ArrayList<>(byName.values());
+        List<Exercise> exerciseList = new ArrayList<>(byId.values());
+        // Split both lists so that every statement stays within the parameter limit
+        int exerciseChunk = Math.min(exerciseList.size(), MAX_PARAMETERS / 2);
+        for (int e = 0; e < exerciseList.size(); e += exerciseChunk) {
+            List<Exercise> exerciseBatch = exerciseList.subList(e, Math.min(exerciseList.size(), e + exerciseChunk));
+            int userChunk = MAX_PARAMETERS - exerciseBatch.size();
+            for (int u = 0; u < userList.size(); u += userChunk) {
+                List<User> userBatch = userList.subList(u, Math.min(userList.size(), u + userChunk));
+                readLastSubmissions(userBatch, exerciseBatch, latest);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Read the latest submissions of a batch of users for a batch of exercises, with
+     * one bound parameter per user and per exercise.
+     * <p>
+     * Grade rows (or packed grades) are decoded straight into the grade array of
+     * their submission, by QuestionId, so the rows can arrive in any order.
+     */
+    private void readLastSubmissions(List<User> users, List<Exercise> exercises,
+            Map<String, Map<Integer, Submission>> latest) throws SQLException {
+        boolean packed = usesPackedGrades();
+        StringBuilder query = new StringBuilder("WITH Names(Username) AS (VALUES (?)");
+        for (int i = 1; i < users.size(); ++i)
+            query.append(", (?)");
+        query.append("), Exercises(ExerciseId) AS (VALUES (?)");
+        for (int i = 1; i < exercises.size(); ++i)
+            query.append(", (?)");
+        query.append(") SELECT u.Username, x.ExerciseId, s.SubmissionId, s.SubmissionTime, ")
+                .append(packed ? "s.Grades " : "qg.QuestionId, qg.Grade ")
+                .append("FROM Names n JOIN User u ON u.Username = n.Username CROSS JOIN Exercises x ")
+                .append("JOIN Submission s ON s.SubmissionId = (SELECT ls.SubmissionId FROM Submission ls ")
+                .append("WHERE ls.UserId = u.UserId AND ls.ExerciseId = x.ExerciseId ")
+                .append("ORDER BY ls.SubmissionTime DESC, ls.SubmissionId DESC LIMIT 1) ")
+                .append(packed ? "" : "LEFT JOIN QuestionGrade qg ON qg.SubmissionId = s.SubmissionId");
+
+        Map<String, User> byName = new HashMap<>();
+        Map<Integer, Exercise> byId = new HashMap<>();
+        try (PreparedStatement stmt = db.prepareStatement(query.toString())) {
+            int param = 1;
+            for (User user : users) {
+                stmt.setString(param++, user.username);
+                byName.put(user.username, user);
+            }
+            for (Exercise exercise : exercises) {
+                stmt.setInt(param++, exercise.id);
+                byId.put(exercise.id, exercise);
+            }
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String username = rs.getString("Username");
+                    Exercise exercise = byId.get(rs.getInt("ExerciseId"));
+                    Map<Integer, Submission> userLatest = latest.computeIfAbsent(username, name -> new HashMap<>());
+                    Submission submission = userLatest.get(exercise.id);
+                    if (submission == null) {
+                        submission = new Submission(rs.getInt("SubmissionId"), byName.get(username), exercise,
+                                new Date(rs.getLong("SubmissionTime")), new float[exercise.questions.size()]);
+                        userLatest.put(exercise.id, submission);
+                    }
+                    if (packed) {
+                        PackedGrades.decodeInto(rs.getBytes("Grades"), submission.questionGrades);
+                        continue;
+                    }
+                    // QuestionIds are 1-based positions; grades of unknown questions are dropped
+                    int index = rs.getInt("QuestionId") - 1;
+                    if (!rs.wasNull() && index >= 0 && index < submission.questionGrades.length)
+                        submission.questionGrades[index] = rs.getFloat("Grade");
+                }
+            }
+        }
+    }
+
+    // ============= Submission History ===============
+
+    /**
+     * Return one page of the given user's submissions for the given exercise, newest
+     * first.
+     * <p>
+     * Pages are addressed by a keyset cursor on (SubmissionTime, SubmissionId) rather
+     * than an offset, so every page is a range scan of the
+     * SubmissionUserExerciseTime index and deep pages cost the same as the first.
+     * <p>
+     * If an archive is attached, archived submissions are included.
+     *
+     * @param user     the submitting user
+     * @param exercise the exercise
+     * @param cursor   the {@link SubmissionPage#next} of the previous page, or null for
+     *                 the first page
+     * @param pageSize the maximal number of submissions on the page
+     * @return the page; its submissions list is empty if there are no (more) submissions.
+     * @throws SQLException
+     */
+    public SubmissionPage getSubmissionHistory(User user, Exercise exercise, SubmissionPage.Cursor cursor,
+            int pageSize) throws SQLException {
+        return readSubmissionHistory(user, exercise, cursor, pageSize);
+    }
+
+    /**
+     * Return one page of the given user's submissions for all exercises, newest first.
+     * <p>
+     * Like {@link #getSubmissionHistory(User, Exercise, SubmissionPage.Cursor, int)},
+     * but backed by the SubmissionUserTime index.
+     *
+     * @param user     the submitting user
+     * @param cursor   the {@link SubmissionPage#next} of the previous page, or null for
+     *                 the first page
+     * @param pageSize the maximal number of submissions on the page
+     * @return the page; its submissions list is empty if there are no (more) submissions.
+     * @throws SQLException
+     */
+    public SubmissionPage getSubmissionHistory(User user, SubmissionPage.Cursor cursor, int pageSize)
+            throws SQLException {
+        return readSubmissionHistory(user, null, cursor, pageSize);
+    }
+
+    /**
+     * Shared implementation of the submission history queries.
+     *
+     * @param exercise the exercise to restrict to, or null for all exercises
+     */
+    private SubmissionPage readSubmissionHistory(User user, Exercise exercise, SubmissionPage.Cursor cursor,
+            int pageSize) throws SQLException {
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        checkDB();
+
+        boolean packed = usesPackedGrades();
+        // The inner query selects the page (plus one row to detect whether there is a
+        // next page) from the index; the grades are joined only for those rows. In the
+        // packed format every row already carries its grades.
+        String pageFilter = "WHERE UserId = (SELECT UserId FROM main.User WHERE Username = ?) " +
+                (exercise != null ? "AND ExerciseId = ? " : "") +
+                "AND (SubmissionTime, SubmissionId) < (?, ?) " +
+                "ORDER BY SubmissionTime DESC, SubmissionId DESC LIMIT ?";
+        String columns = "SubmissionId, ExerciseId, SubmissionTime" + (packed ? ", Grades" : "");
+        String page;
+        String gradeJoin;
+        if (!archiveAttached) {
+            page = "SELECT " + columns + ", 0 AS Archived FROM Submission " + pageFilter;
+            gradeJoin = "LEFT JOIN QuestionGrade qg ON qg.SubmissionId = s.SubmissionId ";
+        } else {
+            // Each side takes its own page from its own index; the union is cut to size.
+            // Grades are joined from whichever database the submission lives in.
+            page = "SELECT * FROM (SELECT " + columns + ", 0 AS Archived FROM main.Submission " + pageFilter + ") " +
+                    "UNION ALL SELECT * FROM (SELECT " + columns + ", 1 FROM " + SubmissionArchive.SCHEMA +
+                    ".Submission " + pageFilter + ") " +
+                    "ORDER BY SubmissionTime DESC, SubmissionId DESC LIMIT ?";
+            gradeJoin = "LEFT JOIN main.QuestionGrade mg ON s.Archived = 0 AND mg.SubmissionId = s.SubmissionId " +
+                    "LEFT JOIN " + SubmissionArchive.SCHEMA + ".QuestionGrade ag " +
+                    "ON s.Archived = 1 AND ag.SubmissionId = s.SubmissionId ";
+        }
+        String gradeColumn = archiveAttached ? "COALESCE(mg.Grade, ag.Grade)" : "qg.Grade";
+        String questionColumn = archiveAttached ? "COALESCE(mg.QuestionId, ag.QuestionId)" : "qg.QuestionId";
+        String query = "SELECT s.SubmissionId, s.ExerciseId, s.SubmissionTime, " +
+                (packed ? "s.Grades " : gradeColumn + " AS Grade ") +
+                "FROM (" + page + ") s " +
+                (packed ? "" : gradeJoin) +
+                "ORDER BY s.SubmissionTime DESC, s.SubmissionId DESC" + (packed ? "" : ", " + questionColumn + " ASC");
+
+        List<Submission> submissions = new ArrayList<>();
+        boolean hasMore = false;
+        // Exercises referenced by this page (only used for the all-exercises variant)
+        Map<Integer, Exercise> exercises = new HashMap<>();
+
+        try (PreparedStatement stmt = db.prepareStatement(query)) {
+            int param = 1;
+            // The page filter appears once, or once per database when an archive is attached
+            for (int side = 0; side < (archiveAttached ? 2 : 1); ++side) {
+                stmt.setString(param++, user.username);
+                if (exercise != null)
+                    stmt.setInt(param++, exercise.id);
+                stmt.setLong(param++, cursor != null ? cursor.submissionTime : Long.MAX_VALUE);
+                stmt.setInt(param++, cursor != null ? cursor.submissionId : Integer.MAX_VALUE);
+                stmt.setInt(param++, pageSize + 1);
+            }
+            if (archiveAttached)
+                stmt.setInt(param, pageSize + 1);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                Submission current = null;
+                float[] grades = new float[16];
+                int numGrades = 0;
+                while (rs.next()) {
+                    int sid = rs.getInt("SubmissionId");
+                    if (current == null || current.id != sid) {
+                        if (current != null && !packed)
+                            current.questionGrades = toGradeArray(current.exercise, grades, numGrades);
+                        if (submissions.size() == pageSize) {
+                            // This row belongs to the look-ahead submission
+                            current = null;
+                            hasMore = true;
+                            break;
+                        }
+                        Exercise ex = exercise;
+                        if (ex == null) {
+                            int eid = rs.getInt("ExerciseId");
+                            ex = exercises.get(eid);
+                            if (ex == null) {
+                                ex = loadExercise(eid);
+                                if (ex == null)
+                                    ex = new Exercise(eid, null, null); // dangling exercise id
+                                exercises.put(eid, ex);
+                            }
+                        }
+                        current = new Submission(sid, user, ex, new Date(rs.getLong("SubmissionTime")), null);
+                        submissions.add(current);
+                        numGrades = 0;
+                    }
+                    if (packed) {
+                        byte[] packedGrades = rs.getBytes("Grades");
+                        int length = current.exercise.questions.isEmpty()
+                                ? (packedGrades == null ? 0 : packedGrades.length / PackedGrades.GRADE_BYTES)
+                                : current.exercise.questions.size();
+                        current.questionGrades = PackedGrades.decode(packedGrades, length);
+                        continue;
+                    }
+                    float grade = rs.getFloat("Grade");
+                    if (!rs.wasNull()) {
+                        if (numGrades == grades.length)
+                            grades = Arrays.copyOf(grades, grades.length * 2);
+                        grades[numGrades++] = grade;
+                    }
+                }
+                if (current != null && !packed)
+                    current.questionGrades = toGradeArray(current.exercise, grades, numGrades);
+            }
+        }
+
+        SubmissionPage.Cursor next = null;
+        if (hasMore) {
+            Submission last = submissions.get(submissions.size() - 1);
+            next = new SubmissionPage.Cursor(last.submissionTime.getTime(), last.id);
+        }
+        return new SubmissionPage(submissions, next);
+    }
+
+    /**
+     * Copy the grades read for one submission into a grade array sized for its exercise.
+     */
+    private static float[] toGradeArray(Exercise exercise, float[] grades, int numGrades) {
+        int length = exercise.questions.isEmpty() ? numGrades : exercise.questions.size();
+        float[] result = new float[length];
+        System.arraycopy(grades, 0, result, 0, Math.min(numGrades, length));
+        return result;
+    }
+
+    // ============= Submission Scanning ===============
+
+    /**
+     * Visit every submission matching the filter, in SubmissionId order.
+     * <p>
+     * Unlike the query methods, no {@link Submission}, {@link Date} or grade array is
+     * allocated per row: the visitor is called with the same {@link SubmissionView}
+     * each time, refilled from the current row, and columns are read by index as
+     * primitives. This is meant for analytics over very many submissions.
+     *
+     * @param filter  which submissions to visit
+     * @param visitor called once per matching submission; may stop the scan early
+     * @return the number of submissions visited
+     * @throws SQLException
+     */
+    public int scanSubmissions(SubmissionFilter filter, SubmissionVisitor visitor) throws SQLException {
+        checkDB();
+        boolean packed = usesPackedGrades();
+        // Columns: 1 SubmissionId, 2 UserId, 3 ExerciseId, 4 SubmissionTime, 5 Grade(s)
+        String query = "SELECT s.SubmissionId, s.UserId, s.ExerciseId, s.SubmissionTime, " +
+                (packed ? "s.Grades " : "qg.Grade ") +
+                "FROM Submission s " +
+                (packed ? "" : "LEFT JOIN QuestionGrade qg ON qg.SubmissionId = s.SubmissionId ") +
+                "WHERE s.SubmissionTime >= ? AND s.SubmissionTime < ? " +
+                (filter.exerciseId != null ? "AND s.ExerciseId = ? " : "") +
+                (filter.userId != null ? "AND s.UserId = ? " : "") +
+                "ORDER BY s.SubmissionId" + (packed ? "" : ", qg.QuestionId");
+
+        try (PreparedStatement stmt = db.prepareStatement(query)) {
+            int param = 1;
+            stmt.setLong(param++, filter.fromTime);
+            stmt.setLong(param++, filter.toTime);
+            if (filter.exerciseId != null)
+                stmt.setInt(param++, filter.exerciseId);
+            if (filter.userId != null)
+                stmt.setInt(param, filter.userId);
+            return visitSubmissions(stmt, packed, visitor);
+        }
+    }
+
+    /**
+     * Execute a submission scan query and feed its rows to a visitor.
+     * <p>
+     * The query must return the columns SubmissionId, UserId, ExerciseId,
+     * SubmissionTime and then either Grades (packed format) or Grade (one row per
+     * question, with the rows of a submission contiguous and in question order).
+     *
+     * @param stmt    the prepared query, with its parameters bound
+     * @param packed  whether column 5 is a packed Grades BLOB
+     * @param visitor called once per submission
+     * @return the number of submissions visited
+     * @throws SQLException
+     */
+    private int visitSubmissions(PreparedStatement stmt, boolean packed, SubmissionVisitor visitor)
+            throws SQLException {
+        SubmissionView view = new SubmissionView();
+        int visited = 0;
+        try (ResultSet rs = stmt.executeQuery()) {
+            boolean hasRow = rs.next();
+            while (hasRow) {
+                view.id = rs.getInt(1);
+                view.userId = rs.getInt(2);
+                view.exerciseId = rs.getInt(3);
+                view.submissionTime = rs.getLong(4);
+                view.numGrades = 0;
+
+                if (packed) {
+                    byte[] grades = rs.getBytes(5);
+                    int n = grades == null ? 0 : grades.length / PackedGrades.GRADE_BYTES;
+                    if (n > view.grades.length)
+                        view.grades = new float[Math.max(n, view.grades.length * 2)];
+                    view.numGrades = PackedGrades.decodeInto(grades, view.grades);
+                    hasRow = rs.next();
+                } else {
+                    // Collect this submission's grade rows into the reused buffer
+                    do {
+                        float grade = rs.getFloat(5);
+                        if (!rs.wasNull()) {
+                            if (view.numGrades == view.grades.length)
+                                view.grades = Arrays.copyOf(view.grades, view.grades.length * 2);
+                            view.grades[view.numGrades++] = grade;
+                        }
+                        hasRow = rs.next();
+                    } while (hasRow && rs.getInt(1) == view.id);
+                }
+
+                ++visited;
+                if (!visitor.visit(view))
+                    break;
+            }
+        }
+        return visited;
+    }
+
+    // ============= Due Date Reports ===============
+
+    /**
+     * Stream every submission made after its exercise's due date.
+     * <p>
+     * Submissions are visited ordered by exercise and then by submission time. Each
+     * exercise contributes a range scan of the SubmissionExerciseTime index starting
+     * at its due date, so the cost scales with the number of late submissions rather
+     * than the size of the Submission table.
+     *
+     * @param exercise the exercise to report on, or null for all exercises
+     * @param visitor  called once per late submission; may stop the report early
+     * @return the number of submissions visited
+     * @throws SQLException
+     */
+    public int scanLateSubmissions(Exercise exercise, SubmissionVisitor visitor) throws SQLException {
+        return scanDueDateRange(exercise, 1, null, visitor);
+    }
+
+    /**
+     * Stream every submission made within a time window around its exercise's due date,
+     * i.e. with {@code DueDate - before <= SubmissionTime <= DueDate + after}.
+     * <p>
+     * Like {@link #scanLateSubmissions(Exercise, SubmissionVisitor)}, this is an index
+     * range scan per exercise.
+     *
+     * @param exercise the exercise to report on, or null for all exercises
+     * @param before   how long before the due date the window starts (millis, >= 0)
+     * @param after    how long after the due date the window ends (millis, >= 0)
+     * @param visitor  called once per submission in the window; may stop the report early
+     * @return the number of submissions visited
+     * @throws SQLException
+     */
+    public int scanDueDateWindow(Exercise exercise, long before, long after, SubmissionVisitor visitor)
+            throws SQLException {
+        if (before < 0 || after < 0)
+            throw new IllegalArgumentException("Window bounds must be non-negative");
+        return scanDueDateRange(exercise, -before, after, visitor);
+    }
+
+    /**
+     * Visit submissions whose time, relative to their exercise's due date, lies in
+     * [fromOffset, toOffset] (toOffset null for no upper bound).
+     */
+    private int scanDueDateRange(Exercise exercise, long fromOffset, Long toOffset, SubmissionVisitor visitor)
+            throws SQLException {
+        checkDB();
+        boolean packed = usesPackedGrades();
+        String query = "SELECT s.SubmissionId, s.UserId, s.ExerciseId, s.SubmissionTime, " +
+                (packed ? "s.Grades " : "qg.Grade ") +
+                "FROM Exercise e " +
+                "JOIN Submission s ON s.ExerciseId = e.ExerciseId " +
+                "AND s.SubmissionTime >= e.DueDate + ? " +
+                (toOffset != null ? "AND s.SubmissionTime <= e.DueDate + ? " : "") +
+                (packed ? "" : "LEFT JOIN QuestionGrade qg ON qg.SubmissionId = s.SubmissionId ") +
+                (exercise != null ? "WHERE e.ExerciseId = ? " : "") +
+                "ORDER BY s.ExerciseId, s.SubmissionTime, s.SubmissionId" + (packed ? "" : ", qg.QuestionId");
+        try (PreparedStatement stmt = db.prepareStatement(query)) {
+            int param = 1;
+            stmt.setLong(param++, fromOffset);
+            if (toOffset != null)
+                stmt.setLong(param++, toOffset);
+            if (exercise != null)
+                stmt.setInt(param, exercise.id);
+            return visitSubmissions(stmt, packed, visitor);
+        }
+    }
+
+    // ============= Regrading ===============
+
+    /**
+     * Change the points of an exercise's questions, rescaling every existing grade
+     * proportionally (a grade for a question whose points go from 5 to 10 doubles).
+     * Grades of questions that had 0 points are left as they are.
+     * <p>
+     * The new points are written in the same transaction as the first chunk of
+     * regraded submissions. If the regrade fails part way, calling this again with the
+     * same points resumes it; any other regrade of the exercise fails until it has.
+     *
+     * @param exercise  the exercise
+     * @param newPoints the new points of each question, in question order
+     * @param chunkSize the maximal number of submissions regraded per transaction
+     * @param progress  called after every chunk, or null
+     * @return the number of submissions regraded by this call
+     * @throws SQLException
+     * @see #rescaleGrades(Exercise, double[], int, RegradeProgress)
+     */
+    public long changeQuestionPoints(Exercise exercise, int[] newPoints, int chunkSize, RegradeProgress progress)
+            throws SQLException {
+        checkDB();
+        // The stored points are authoritative, not those of the caller's object
+        Exercise stored = loadExercise(exercise.id);
+        if (stored == null)
+            throw new SQLException("No exercise with id " + exercise.id);
+        if (newPoints.length != stored.questions.size())
+            throw new IllegalArgumentException("Exercise " + exercise.id + " has " + stored.questions.size()
+                    + " questions, got " + newPoints.length + " points");
+
+        attachRegradeState();
+        try {
+            ExerciseRegrade.State pending = ExerciseRegrade.loadState(db, exercise.id);
+            double[] factors;
+            if (pending != null && Arrays.equals(pending.points, newPoints)) {
+                // Resumed: the stored points are the new ones already
+                factors = pending.factors;
+            } else {
+                factors = new double[newPoints.length];
+                for (int i = 0; i < factors.length; ++i) {
+                    int oldPoints = stored.questions.get(i).points;
+                    factors[i] = oldPoints == 0 ? 1 : (double) newPoints[i] / oldPoints;
+                }
+            }
+            return regrade(stored, factors, newPoints.clone(), chunkSize, progress);
+        } finally {
+            ExerciseRegrade.detachState(db);
+        }
+    }
+
+    /**
+     * Multiply every grade of an exercise by a per-question factor.
+     * <p>
+     * Submissions are regraded in increasing id order, in transactions of at most
+     * {@code chunkSize} submissions, each with a single set-based UPDATE (in the packed
+     * format, one statement batch). Archived submissions are regraded too if an
+     * archive is attached. Only submissions that exist when the regrade starts are
+     * rescaled.
+     * <p>
+     * Every chunk's transaction also records how far the regrade got. If it fails, the
+     * chunks reported to {@code progress} so far have been applied, and calling this
+     * again with the same factors resumes after them, so no grade is rescaled twice.
+     * Any other regrade of the exercise fails until the pending one is finished.
+     * <p>
+     * Derived data is kept consistent: cached latest submissions are invalidated after
+     * every chunk, the exercise's grade sketch is rebuilt at the end, and an EXERCISE
+     * change is recorded. A regrade can make an archived submission its user's best
+     * again; the last chunk's transaction moves such submissions back from the
+     * archive.
+     * <p>
+     * The progress is kept in a state database next to the main database file (see
+     * {@link ExerciseRegrade}), so a regrade must be called outside of any transaction
+     * and, for a file database, not in WAL mode.
+     *
+     * @param exercise  the exercise
+     * @param factors   factors[i] is the factor for question i; grades of questions
+     *                  beyond the array are left as they are
+     * @param chunkSize the maximal number of submissions regraded per transaction
+     * @param progress  called after every chunk, or null
+     * @return the number of submissions regraded by this call
+     * @throws SQLException
+     */
+    public long rescaleGrades(Exercise exercise, double[] factors, int chunkSize, RegradeProgress progress)
+            throws SQLException {
+        checkDB();
+        attachRegradeState();
+        try {
+            return regrade(exercise, factors.clone(), null, chunkSize, progress);
+        } finally {
+            ExerciseRegrade.detachState(db);
+        }
+    }
+
+    /**
+     * Attach the regrade state database; it is detached by the caller.
+     *
+     * @throws SQLException if a transaction is open
+     */
+    private void attachRegradeState() throws SQLException {
+        checkNoTransaction("A regrade");
+        ExerciseRegrade.attachState(db);
+    }
+
+    /**
+     * Start or resume a regrade, with the state database attached.
+     *
+     * @param points the new question points, written with the first chunk, or null
+     */
+    private long regrade(Exercise exercise, double[] factors, int[] points, int chunkSize, RegradeProgress progress)
+            throws SQLException {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        boolean packed = usesPackedGrades();
+
+        List<String> schemas = new ArrayList<>();
+        schemas.add("main");
+        if (archiveAttached)
+            schemas.add(SubmissionArchive.SCHEMA);
+        int[] ids = ExerciseRegrade.submissionIds(db, schemas, exercise.id);
+
+        ExerciseRegrade.State state = ExerciseRegrade.loadState(db, exercise.id);
+        boolean resumed = state != null;
+        // Whether the state row exists (and must be deleted by the last chunk)
+        boolean saved = resumed;
+        if (resumed && !state.matches(factors, points))
+            throw new SQLException("Exercise " + exercise.id + " has an unfinished regrade with different "
+                    + "parameters; repeat it to finish it first");
+        if (!resumed)
+            state = new ExerciseRegrade.State(factors, points, ids.length > 0 ? ids[ids.length - 1] : 0, 0);
+
+        // Only ids in (watermark, last] are left; ids are unique across main and archive
+        int from = 0;
+        while (from < ids.length && ids[from] <= state.upToSubmissionId)
+            ++from;
+        int end = from;
+        while (end < ids.length && ids[end] <= state.lastSubmissionId)
+            ++end;
+        long total = end - from;
+        long done = 0;
+
+        // One transaction per chunk; a fresh regrade's points go into the first one
+        boolean first = true;
+        do {
+            int to = Math.min(end, from + chunkSize);
+            boolean autoCommit = db.getAutoCommit();
+            db.setAutoCommit(false);
+            try {
+                if (first && !resumed && points != null)
+                    ExerciseRegrade.updatePoints(db, exercise.id, points);
+                if (to > from) {
+                    for (String schema : schemas)
+                        ExerciseRegrade.rescaleRange(db, schema, exercise.id, ids[from], ids[to - 1], factors, packed);
+                    state.upToSubmissionId = ids[to - 1];
+                }
+                if (to < end) {
+                    ExerciseRegrade.saveState(db, exercise.id, state);
+                } else {
+                    if (saved)
+                        ExerciseRegrade.clearState(db, exercise.id);
+                    if (archiveAttached)
+                        SubmissionArchive.restoreOutranked(db, exercise.id, packed);
+                }
+                db.commit();
+            } catch (SQLException e) {
+                db.rollback();
+                throw e;
+            } finally {
+                db.setAutoCommit(autoCommit);
+            }
+            saved = to < end;
+            first = false;
+            LatestSubmissionCache latestCache = this.latestCache;
+            if (latestCache != null)
+                latestCache.invalidateAll();
+            done += to - from;
+            from = to;
+            if (progress != null && total > 0)
+                progress.progress(done, total);
+        } while (from < end);
+
+        if (usesGradeSketches())
+            gradeSketches.put(exercise.id, GradeSketches.rebuild(db, exercise.id, packed));
+        recordChange(Change.Type.EXERCISE, exercise.id, null, exercise.id);
+        return done;
+    }
+
+    // ============= Snapshots ===============
+
+    /**
+     * Export users, exercises and the latest and best submission of every
+     * (user, exercise) pair to a binary snapshot file, for read-only replicas.
+     *
+     * @param file the snapshot file (replaced atomically if it exists)
+     * @return the number of (user, exercise) pairs exported
+     * @throws SQLException
+     * @throws IOException
+     * @see #openSnapshot(Path)
+     */
+    public int exportSnapshot(Path file) throws SQLException, IOException {
+        checkDB();
+        return SubmissionSnapshot.export(this, file);
+    }
+
+    /**
+     * Open a snapshot written by {@link #exportSnapshot(Path)} in read-only mode,
+     * instead of a DB.
+     * <p>
+     * The file is memory-mapped and only its header is read, so this returns almost
+     * immediately. {@link #loadExercises()}, {@link #loadExercise(int)},
+     * {@link #getLastSubmission(User, Exercise)}, {@link #getBestSubmission(User, Exercise)}
+     * and {@link #getLastSubmissions(Collection, Collection)} are then answered from
+     * the snapshot; every other method needs the DB and fails with an SQLException.
+     * Call {@link #closeDB()} to leave read-only mode.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the file can't be mapped or is not a snapshot
+     */
+    public void openSnapshot(Path file) throws IOException {
+        if (db != null)
+            throw new IllegalStateException("A DB is open");
+        snapshot = SubmissionSnapshot.open(file);
+    }
+
+    /**
+     * @return true if this instance serves a snapshot in read-only mode.
+     */
+    public boolean isReadOnly() {
+        return snapshot != null;
+    }
+
+    // ============= Archival ===============
+
+    /**
+     * Attach an archive database (creating it if necessary), so that superseded
+     * submissions can be moved there and the submission history includes them.
+     *
+     * @param archivePath the archive database file
+     * @throws SQLException
+     */
+    public void attachArchive(String archivePath) throws SQLException {
+        checkDB();
+        if (archiveAttached)
+            throw new SQLException("An archive is already attached");
+        SubmissionArchive.attach(db, archivePath);
+        archiveAttached = true;
+    }
+
+    /**
+     * Detach the archive database, if one is attached.
+     *
+     * @throws SQLException
+     */
+    public void detachArchive() throws SQLException {
+        if (archiveAttached) {
+            SubmissionArchive.detach(db);
+            archiveAttached = false;
+        }
+    }
+
+    /**
+     * Move every submission that is neither the latest nor the best for its
+     * (user, exercise) to the attached archive. The submission with the highest id is
+     * kept as well, so that its id is never reused.
+     * <p>
+     * Submissions are moved in transactions of at most {@code chunkSize} submissions,
+     * so that no transaction stays open long. The call as a whole holds the connection
+     * until it returns; run through an {@link OperationRunner}, its deadline interrupts
+     * it, keeping the chunks committed so far. After each chunk, freed pages are
+     * returned to the file system if the database uses incremental auto-vacuum (which
+     * new databases do). Grade sketches, if enabled, are rebuilt from the remaining
+     * submissions.
+     *
+     * @param chunkSize the maximal number of submissions moved per transaction
+     * @return the number of submissions archived
+     * @throws SQLException if no archive is attached, or a transaction is open (an
+     *                      archive run commits chunk by chunk)
+     * @see #attachArchive(String)
+     */
+    public int archiveSupersededSubmissions(int chunkSize) throws SQLException {
+        if (!archiveAttached)
+            throw new SQLException("No archive is attached");
+        checkNoTransaction("An archive run");
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+
+        boolean packed = usesPackedGrades();
+        int[] superseded = SubmissionArchive.findSuperseded(this);
+        for (int from = 0; from < superseded.length; from += chunkSize) {
+            int to = Math.min(superseded.length, from + chunkSize);
+            SubmissionArchive.moveChunk(db, superseded, from, to, packed);
+            SubmissionArchive.incrementalVacuum(db);
+        }
+        // Sketches only ever add submissions, so they are rebuilt without the archived ones
+        if (superseded.length > 0 && usesGradeSketches()) {
+            GradeSketches.enable(db, packed);
+            gradeSketches.clear();
+        }
+        return superseded.length;
     }
 }
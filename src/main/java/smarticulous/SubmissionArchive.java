@@ -0,0 +1,370 @@
+package smarticulous;
+
+import smarticulous.db.SubmissionFilter;
+import smarticulous.db.SubmissionView;
+import smarticulous.db.SubmissionVisitor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Archival of superseded submissions into a separate SQLite database.
+ * <p>
+ * A submission is superseded if it is neither the latest nor the best submission of
+ * its user for its exercise (with the same tie-breaking as
+ * {@link Smarticulous#getLastSubmission} and {@link Smarticulous#getBestSubmission}).
+ * Superseded submissions are moved, together with their grades, to the archive
+ * database attached to the connection as schema {@value #SCHEMA}. New submissions
+ * can only add competitors, so a submission that is superseded stays superseded;
+ * only a regrade can make an archived submission its user's best again, and it
+ * restores such submissions with {@link #restoreOutranked}.
+ * <p>
+ * The archive has the same Submission and QuestionGrade tables as the main database;
+ * its Submission table always has the packed Grades column, which is only filled
+ * when the main database uses the packed format.
+ * <p>
+ * Submission ids stay unique across both databases: the highest id always stays in
+ * the main database, so SQLite never hands out an archived id again (AUTOINCREMENT
+ * would need an extra sqlite_sequence table in the main schema), and explicit ids
+ * that are already archived are rejected when a submission is stored.
+ */
+final class SubmissionArchive {
+
+    /**
+     * Schema name of the attached archive database.
+     */
+    static final String SCHEMA = "archive";
+
+    private SubmissionArchive() {
+    }
+
+    /**
+     * Attach an archive database to the connection, creating its tables if necessary.
+     *
+     * @param db          an open connection
+     * @param archivePath the archive database file
+     * @throws SQLException
+     */
+    static void attach(Connection db, String archivePath) throws SQLException {
+        try (PreparedStatement attach = db.prepareStatement("ATTACH DATABASE ? AS " + SCHEMA)) {
+            attach.setString(1, archivePath);
+            attach.executeUpdate();
+        }
+        try (Statement stmt = db.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + SCHEMA + ".Submission (" +
+                    "SubmissionId INTEGER PRIMARY KEY," +
+                    "UserId INTEGER," +
+                    "ExerciseId INTEGER," +
+                    "SubmissionTime INTEGER," +
+                    "Grades BLOB" +
+                    ");");
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + SCHEMA + ".QuestionGrade (" +
+                    "SubmissionId INTEGER," +
+                    "QuestionId INTEGER," +
+                    "Grade REAL," +
+                    "PRIMARY KEY (SubmissionId, QuestionId)" +
+                    ");");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + SCHEMA + ".SubmissionUserExerciseTime " +
+                    "ON Submission (UserId, ExerciseId, SubmissionTime, SubmissionId);");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + SCHEMA + ".SubmissionUserTime " +
+                    "ON Submission (UserId, SubmissionTime, SubmissionId);");
+            // For regrades and per-exercise scans of the archive
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + SCHEMA + ".SubmissionExerciseTime " +
+                    "ON Submission (ExerciseId, SubmissionTime);");
+        }
+    }
+
+    /**
+     * Detach the archive database.
+     *
+     * @param db an open connection with an attached archive
+     * @throws SQLException
+     */
+    static void detach(Connection db) throws SQLException {
+        try (Statement stmt = db.createStatement()) {
+            stmt.executeUpdate("DETACH DATABASE " + SCHEMA);
+        }
+    }
+
+    /**
+     * Find the ids of all superseded submissions, in increasing order.
+     * <p>
+     * This is a single scan over all submissions that remembers the latest and best
+     * submission per (user, exercise). The submission with the highest id is never
+     * archived: SQLite gives a new row the highest rowid plus one, so archiving it
+     * would let the next submission reuse its id.
+     *
+     * @param smarticulous the instance whose DB is scanned
+     * @return the superseded submission ids
+     * @throws SQLException
+     */
+    static int[] findSuperseded(Smarticulous smarticulous) throws SQLException {
+        KeeperFinder finder = new KeeperFinder(QuestionPoints.load(smarticulous.db, null));
+        smarticulous.scanSubmissions(new SubmissionFilter(), finder);
+
+        int[] kept = new int[finder.keepers.size() * 2];
+        int numKept = 0;
+        for (long[] k : finder.keepers.values()) {
+            kept[numKept++] = (int) k[LATEST_ID];
+            kept[numKept++] = (int) k[BEST_ID];
+        }
+        Arrays.sort(kept, 0, numKept);
+
+        // The scan visits submissions in SubmissionId order, so ids is already sorted
+        // and the last one is the highest
+        int[] superseded = new int[finder.numIds];
+        int n = 0;
+        for (int i = 0; i < finder.numIds - 1; ++i) {
+            if (Arrays.binarySearch(kept, 0, numKept, finder.ids[i]) < 0)
+                superseded[n++] = finder.ids[i];
+        }
+        return Arrays.copyOf(superseded, n);
+    }
+
+    // Indexes into a KeeperFinder entry
+    private static final int LATEST_ID = 0;
+    private static final int LATEST_TIME = 1;
+    private static final int BEST_ID = 2;
+    private static final int BEST_TIME = 3;
+    private static final int BEST_TOTAL = 4;
+
+    /**
+     * Collects all submission ids, and the latest and best submission of every
+     * (user, exercise) pair. The best submission has the highest points-weighted
+     * total, as in getBestSubmission.
+     */
+    private static final class KeeperFinder implements SubmissionVisitor {
+        /**
+         * (userId, exerciseId) packed in a long, to {latestId, latestTime, bestId,
+         * bestTime, bestTotal as double bits}.
+         */
+        final Map<Long, long[]> keepers = new HashMap<>();
+        /**
+         * The points of every exercise's questions, by exercise id.
+         */
+        final Map<Integer, int[]> points;
+        int[] ids = new int[1024];
+        int numIds;
+
+        KeeperFinder(Map<Integer, int[]> points) {
+            this.points = points;
+        }
+
+        @Override
+        public boolean visit(SubmissionView sub) {
+            if (numIds == ids.length)
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            ids[numIds++] = sub.id;
+
+            long pair = ((long) sub.userId << 32) | (sub.exerciseId & 0xffffffffL);
+            double total = sub.total(points.getOrDefault(sub.exerciseId, new int[0]));
+            long[] k = keepers.get(pair);
+            if (k == null) {
+                keepers.put(pair, new long[] { sub.id, sub.submissionTime, sub.id, sub.submissionTime,
+                        Double.doubleToLongBits(total) });
+                return true;
+            }
+            if (newer(sub.submissionTime, sub.id, k[LATEST_TIME], k[LATEST_ID])) {
+                k[LATEST_ID] = sub.id;
+                k[LATEST_TIME] = sub.submissionTime;
+            }
+            double bestTotal = Double.longBitsToDouble(k[BEST_TOTAL]);
+            // Ties go to the latest submission, as in getBestSubmission
+            if (total > bestTotal
+                    || (total == bestTotal && newer(sub.submissionTime, sub.id, k[BEST_TIME], k[BEST_ID]))) {
+                k[BEST_ID] = sub.id;
+                k[BEST_TIME] = sub.submissionTime;
+                k[BEST_TOTAL] = Double.doubleToLongBits(total);
+            }
+            return true;
+        }
+
+        private static boolean newer(long time, int id, long otherTime, long otherId) {
+            return time > otherTime || (time == otherTime && id > otherId);
+        }
+    }
+
+    /**
+     * Move a chunk of submissions, and their grades, to the archive in one transaction
+     * (the caller's, if one is open).
+     *
+     * @param db     an open connection with an attached archive
+     * @param ids    the submission ids
+     * @param from   index of the first id of the chunk
+     * @param to     index after the last id of the chunk
+     * @param packed whether the main database uses the packed grade format
+     * @throws SQLException
+     */
+    static void moveChunk(Connection db, int[] ids, int from, int to, boolean packed) throws SQLException {
+        boolean ownTransaction = db.getAutoCommit();
+        if (ownTransaction)
+            db.setAutoCommit(false);
+        try {
+            // One transaction, but at most MAX_PARAMETERS ids per statement
+            for (int group = from; group < to; group += Smarticulous.MAX_PARAMETERS)
+                moveGroup(db, ids, group, Math.min(to, group + Smarticulous.MAX_PARAMETERS), packed, "main", SCHEMA);
+            if (ownTransaction)
+                db.commit();
+        } catch (SQLException e) {
+            if (ownTransaction)
+                db.rollback();
+            throw e;
+        } finally {
+            if (ownTransaction)
+                db.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Move submissions to the main database whose points-weighted total beats the best
+     * submission that their user has there for the exercise (or ties it and is newer),
+     * as can happen after a regrade. Runs in the caller's transaction.
+     *
+     * @param db         an open connection with an attached archive
+     * @param exerciseId the exercise id
+     * @param packed     whether the main database uses the packed grade format
+     * @return the number of restored submissions
+     * @throws SQLException
+     */
+    static int restoreOutranked(Connection db, int exerciseId, boolean packed) throws SQLException {
+        int[] points = QuestionPoints.load(db, exerciseId).getOrDefault(exerciseId, new int[0]);
+        Map<Integer, double[]> mainBest = bestByUser(db, "main", exerciseId, packed, points);
+        Map<Integer, double[]> archivedBest = bestByUser(db, SCHEMA, exerciseId, packed, points);
+
+        int[] ids = new int[archivedBest.size()];
+        int n = 0;
+        for (Map.Entry<Integer, double[]> e : archivedBest.entrySet()) {
+            double[] kept = mainBest.get(e.getKey());
+            if (kept == null || better(e.getValue(), kept))
+                ids[n++] = (int) e.getValue()[BEST_BY_USER_ID];
+        }
+        Arrays.sort(ids, 0, n);
+        for (int group = 0; group < n; group += Smarticulous.MAX_PARAMETERS)
+            moveGroup(db, ids, group, Math.min(n, group + Smarticulous.MAX_PARAMETERS), packed, SCHEMA, "main");
+        return n;
+    }
+
+    // Indexes into a bestByUser entry
+    private static final int BEST_BY_USER_TOTAL = 0;
+    private static final int BEST_BY_USER_TIME = 1;
+    private static final int BEST_BY_USER_ID = 2;
+
+    /**
+     * @return the best submission of every user for the exercise in one schema, as
+     *         {total, submissionTime, submissionId} by user id
+     */
+    private static Map<Integer, double[]> bestByUser(Connection db, String schema, int exerciseId, boolean packed,
+            int[] points) throws SQLException {
+        String query = packed
+                ? "SELECT SubmissionId, UserId, SubmissionTime, Grades FROM " + schema + ".Submission " +
+                        "WHERE ExerciseId = ?"
+                : "SELECT s.SubmissionId, s.UserId, s.SubmissionTime, TOTAL(qg.Grade * q.Points) AS Total " +
+                        "FROM " + schema + ".Submission s " +
+                        "LEFT JOIN " + schema + ".QuestionGrade qg ON qg.SubmissionId = s.SubmissionId " +
+                        "LEFT JOIN main.Question q ON q.ExerciseId = s.ExerciseId AND q.QuestionId = qg.QuestionId " +
+                        "WHERE s.ExerciseId = ? GROUP BY s.SubmissionId";
+        Map<Integer, double[]> best = new HashMap<>();
+        try (PreparedStatement stmt = db.prepareStatement(query)) {
+            stmt.setInt(1, exerciseId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    double total = packed ? PackedGrades.total(rs.getBytes("Grades"), points) : rs.getDouble("Total");
+                    double[] sub = { total, rs.getLong("SubmissionTime"), rs.getInt("SubmissionId") };
+                    best.merge(rs.getInt("UserId"), sub, (a, b) -> better(b, a) ? b : a);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return whether submission a ranks above b: a higher total, or the same total
+     *         and newer, as in getBestSubmission
+     */
+    private static boolean better(double[] a, double[] b) {
+        if (a[BEST_BY_USER_TOTAL] != b[BEST_BY_USER_TOTAL])
+            return a[BEST_BY_USER_TOTAL] > b[BEST_BY_USER_TOTAL];
+        if (a[BEST_BY_USER_TIME] != b[BEST_BY_USER_TIME])
+            return a[BEST_BY_USER_TIME] > b[BEST_BY_USER_TIME];
+        return a[BEST_BY_USER_ID] > b[BEST_BY_USER_ID];
+    }
+
+    private static void moveGroup(Connection db, int[] ids, int from, int to, boolean packed, String source,
+            String target) throws SQLException {
+        StringBuilder in = new StringBuilder("(");
+        for (int i = from; i < to; ++i)
+            in.append(i == from ? "?" : ",?");
+        in.append(')');
+
+        // Plain INSERTs: an id that is already in the target fails the move instead of
+        // overwriting the submission there
+        String[] statements = {
+                "INSERT INTO " + target + ".Submission " +
+                        "(SubmissionId, UserId, ExerciseId, SubmissionTime" + (packed ? ", Grades" : "") + ") " +
+                        "SELECT SubmissionId, UserId, ExerciseId, SubmissionTime" + (packed ? ", Grades" : "") +
+                        " FROM " + source + ".Submission WHERE SubmissionId IN " + in,
+                "INSERT INTO " + target + ".QuestionGrade (SubmissionId, QuestionId, Grade) " +
+                        "SELECT SubmissionId, QuestionId, Grade FROM " + source + ".QuestionGrade " +
+                        "WHERE SubmissionId IN " + in,
+                "DELETE FROM " + source + ".QuestionGrade WHERE SubmissionId IN " + in,
+                "DELETE FROM " + source + ".Submission WHERE SubmissionId IN " + in,
+        };
+        for (String sql : statements) {
+            try (PreparedStatement stmt = db.prepareStatement(sql)) {
+                for (int i = from; i < to; ++i)
+                    stmt.setInt(i - from + 1, ids[i]);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Check whether a submission id is taken by an archived submission.
+     *
+     * @param db an open connection with an attached archive
+     * @param id the submission id
+     * @return true if the archive holds a submission with this id
+     * @throws SQLException
+     */
+    static boolean contains(Connection db, int id) throws SQLException {
+        try (PreparedStatement stmt = db.prepareStatement(
+                "SELECT 1 FROM " + SCHEMA + ".Submission WHERE SubmissionId = ?")) {
+            stmt.setInt(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Release free pages at the end of the main database file, if it uses incremental
+     * auto-vacuum (databases created by {@link Migrations} do).
+     *
+     * @param db an open connection
+     * @return true if the database uses incremental auto-vacuum
+     * @throws SQLException
+     */
+    static boolean incrementalVacuum(Connection db) throws SQLException {
+        try (Statement stmt = db.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("PRAGMA main.auto_vacuum")) {
+                // 2 = INCREMENTAL
+                if (!rs.next() || rs.getInt(1) != 2)
+                    return false;
+            }
+            // Without an argument, all free pages are released. It returns no useful
+            // rows; drain it so that it runs to completion.
+            try (ResultSet rs = stmt.executeQuery("PRAGMA main.incremental_vacuum")) {
+                while (rs.next()) {
+                    // nothing to read
+                }
+            }
+        }
+        return true;
+    }
+}
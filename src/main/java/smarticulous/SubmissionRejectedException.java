@@ -0,0 +1,52 @@
+package smarticulous;
+
+import java.sql.SQLTransientException;
+
+/**
+ * Thrown when a submission is rejected by the {@link AdmissionController}, either
+ * because the user exceeded their rate limit or because the system is saturated.
+ * <p>
+ * The rejection is transient: the same request may succeed after
+ * {@link #getRetryAfterMillis()}.
+ */
+public class SubmissionRejectedException extends SQLTransientException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why a submission was rejected.
+     */
+    public enum Reason {
+        /**
+         * The user exceeded their per-user rate limit.
+         */
+        RATE_LIMITED,
+        /**
+         * Too many submissions are already in flight.
+         */
+        OVERLOADED
+    }
+
+    private final Reason reason;
+    private final long retryAfterMillis;
+
+    public SubmissionRejectedException(Reason reason, long retryAfterMillis) {
+        super("Submission rejected (" + reason + "), retry after " + retryAfterMillis + " ms");
+        this.reason = reason;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return why the submission was rejected.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return a hint, in milliseconds, for how long to wait before retrying.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,535 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.SubmissionFilter;
+import smarticulous.db.SubmissionView;
+import smarticulous.db.SubmissionVisitor;
+import smarticulous.db.User;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A read-only binary snapshot of users, exercises and the latest and best submission
+ * of every (user, exercise) pair, memory-mapped for instant startup.
+ * <p>
+ * The file is big-endian and consists of a fixed header, three tables of fixed-size
+ * records that are searched in place, and a data section they point into:
+ * <ul>
+ * <li>Header: magic, format version, the number of users, exercises and entries, and
+ * the offsets of the tables and the data section.</li>
+ * <li>Users, sorted by username hash: (hash, userId, usernameRef).</li>
+ * <li>Exercises, sorted by id: (exerciseId, exerciseRef).</li>
+ * <li>Entries, sorted by (userId, exerciseId): (userId, exerciseId, latestId,
+ * latestTime, bestId, bestTime, latestGradesRef, bestGradesRef).</li>
+ * <li>Data: strings (length and UTF-8 bytes; ref -1 is null), exercises (due date,
+ * name, number of questions and each question's name, description and points) and
+ * grade vectors (length and floats). Refs are offsets into the data section.</li>
+ * </ul>
+ * Opening a snapshot maps the file, checks the header and checks that every ref
+ * stays within the data section, so a corrupt file is rejected rather than read out
+ * of bounds; nothing is decoded until it is read. Lookups only use absolute reads, so
+ * a snapshot can be shared by threads. The format uses int offsets, so a snapshot is
+ * limited to 2 GB, which export checks before writing.
+ */
+final class SubmissionSnapshot {
+
+    private static final long MAGIC = 0x534d534e41500001L; // "SMSNAP" 00 01
+    private static final int FORMAT = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int USER_BYTES = 12;
+    private static final int EXERCISE_BYTES = 8;
+    private static final int ENTRY_BYTES = 40;
+
+    private final ByteBuffer buf;
+    private final int numUsers;
+    private final int numExercises;
+    private final int numEntries;
+    private final int usersOffset;
+    private final int exercisesOffset;
+    private final int entriesOffset;
+    private final int dataOffset;
+
+    private SubmissionSnapshot(ByteBuffer buf) throws IOException {
+        if (buf.capacity() < HEADER_BYTES || buf.getLong(0) != MAGIC)
+            throw new IOException("Not a submission snapshot");
+        if (buf.getInt(8) != FORMAT)
+            throw new IOException("Unsupported snapshot format " + buf.getInt(8));
+        this.buf = buf;
+        numUsers = buf.getInt(12);
+        numExercises = buf.getInt(16);
+        numEntries = buf.getInt(20);
+        usersOffset = buf.getInt(24);
+        exercisesOffset = buf.getInt(28);
+        entriesOffset = buf.getInt(32);
+        dataOffset = buf.getInt(36);
+        if (numUsers < 0 || numExercises < 0 || numEntries < 0 || usersOffset < HEADER_BYTES
+                || usersOffset + (long) numUsers * USER_BYTES > exercisesOffset
+                || exercisesOffset + (long) numExercises * EXERCISE_BYTES > entriesOffset
+                || entriesOffset + (long) numEntries * ENTRY_BYTES > dataOffset
+                || dataOffset > buf.capacity())
+            throw new IOException("Corrupt snapshot header");
+        validateRefs();
+    }
+
+    /**
+     * Check that every ref in the tables, and every ref and length in the records they
+     * point to, stays within the data section, so that lookups can't read past it.
+     */
+    private void validateRefs() throws IOException {
+        int dataSize = buf.capacity() - dataOffset;
+        for (int i = 0; i < numUsers; ++i)
+            checkString(buf.getInt(usersOffset + i * USER_BYTES + 8), dataSize);
+        for (int i = 0; i < numExercises; ++i) {
+            int ref = buf.getInt(exercisesOffset + i * EXERCISE_BYTES + 4);
+            checkRange(ref, 16, dataSize);
+            int at = dataOffset + ref;
+            checkString(buf.getInt(at + 8), dataSize);
+            int numQuestions = buf.getInt(at + 12);
+            if (numQuestions < 0)
+                throw new IOException("Corrupt snapshot: negative question count");
+            checkRange(ref + 16L, numQuestions * 12L, dataSize);
+            for (int q = 0; q < numQuestions; ++q) {
+                checkString(buf.getInt(at + 16 + q * 12), dataSize);
+                checkString(buf.getInt(at + 20 + q * 12), dataSize);
+            }
+        }
+        for (int i = 0; i < numEntries; ++i) {
+            int record = entriesOffset + i * ENTRY_BYTES;
+            checkGrades(buf.getInt(record + 32), dataSize);
+            checkGrades(buf.getInt(record + 36), dataSize);
+        }
+    }
+
+    private void checkString(int ref, int dataSize) throws IOException {
+        if (ref == -1)
+            return;
+        checkRange(ref, 4, dataSize);
+        checkRange(ref + 4L, buf.getInt(dataOffset + ref), dataSize);
+    }
+
+    private void checkGrades(int ref, int dataSize) throws IOException {
+        checkRange(ref, 4, dataSize);
+        checkRange(ref + 4L, buf.getInt(dataOffset + ref) * 4L, dataSize);
+    }
+
+    private static void checkRange(long ref, long length, int dataSize) throws IOException {
+        if (ref < 0 || length < 0 || ref + length > dataSize)
+            throw new IOException("Corrupt snapshot: ref " + ref + " is outside the data section");
+    }
+
+    /**
+     * Memory-map a snapshot file.
+     *
+     * @param file the snapshot file
+     * @return the snapshot
+     * @throws IOException if the file can't be mapped or is not a snapshot
+     */
+    static SubmissionSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new SubmissionSnapshot(buf);
+        }
+    }
+
+    /**
+     * Export a snapshot of the database of the given instance. The file is written
+     * next to the target and moved into place, so readers never map a partial file.
+     *
+     * @param smarticulous the instance whose DB is exported
+     * @param file         the snapshot file
+     * @return the number of (user, exercise) entries written
+     * @throws SQLException
+     * @throws IOException
+     */
+    static int export(Smarticulous smarticulous, Path file) throws SQLException, IOException {
+        List<Exercise> exercises = smarticulous.loadExercises();
+        Map<Integer, String> usernames = new HashMap<>();
+        try (Statement stmt = smarticulous.db.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT UserId, Username FROM User")) {
+            while (rs.next())
+                usernames.put(rs.getInt("UserId"), rs.getString("Username"));
+        }
+        Map<Integer, int[]> points = new HashMap<>();
+        for (Exercise exercise : exercises)
+            points.put(exercise.id, QuestionPoints.of(exercise));
+        KeeperCollector keepers = new KeeperCollector(points);
+        smarticulous.scanSubmissions(new SubmissionFilter(), keepers);
+
+        // Data section
+        ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(dataBytes);
+
+        List<int[]> userRecords = new ArrayList<>();
+        for (Map.Entry<Integer, String> user : usernames.entrySet())
+            userRecords.add(new int[] { hash(user.getValue()), user.getKey(), writeString(data, user.getValue()) });
+        userRecords.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+        TreeMap<Integer, Integer> exerciseRefs = new TreeMap<>();
+        for (Exercise exercise : exercises) {
+            // Strings first, so that the exercise record is contiguous
+            int nameRef = writeString(data, exercise.name);
+            int[] questionRefs = new int[exercise.questions.size() * 2];
+            for (int i = 0; i < exercise.questions.size(); ++i) {
+                questionRefs[2 * i] = writeString(data, exercise.questions.get(i).name);
+                questionRefs[2 * i + 1] = writeString(data, exercise.questions.get(i).desc);
+            }
+            exerciseRefs.put(exercise.id, data.size());
+            data.writeLong(exercise.dueDate != null ? exercise.dueDate.getTime() : Long.MIN_VALUE);
+            data.writeInt(nameRef);
+            data.writeInt(exercise.questions.size());
+            for (int i = 0; i < exercise.questions.size(); ++i) {
+                data.writeInt(questionRefs[2 * i]);
+                data.writeInt(questionRefs[2 * i + 1]);
+                data.writeInt(exercise.questions.get(i).points);
+            }
+        }
+
+        TreeMap<Long, Keeper> entries = keepers.keepers;
+        Map<Keeper, int[]> gradeRefs = new HashMap<>();
+        for (Keeper k : entries.values()) {
+            int latestRef = writeGrades(data, k.latestGrades);
+            int bestRef = k.bestId == k.latestId ? latestRef : writeGrades(data, k.bestGrades);
+            gradeRefs.put(k, new int[] { latestRef, bestRef });
+        }
+        data.flush();
+        checkSize(data.size());
+
+        // In longs until the total size is known to fit
+        long usersOffset = HEADER_BYTES;
+        long exercisesOffset = usersOffset + (long) userRecords.size() * USER_BYTES;
+        long entriesOffset = exercisesOffset + (long) exerciseRefs.size() * EXERCISE_BYTES;
+        long dataOffset = entriesOffset + (long) entries.size() * ENTRY_BYTES;
+        long fileSize = dataOffset + dataBytes.size();
+        checkSize(fileSize);
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(userRecords.size());
+            out.writeInt(exerciseRefs.size());
+            out.writeInt(entries.size());
+            out.writeInt((int) usersOffset);
+            out.writeInt((int) exercisesOffset);
+            out.writeInt((int) entriesOffset);
+            out.writeInt((int) dataOffset);
+            out.write(new byte[HEADER_BYTES - 40]);
+
+            for (int[] user : userRecords) {
+                for (int field : user)
+                    out.writeInt(field);
+            }
+            for (Map.Entry<Integer, Integer> exercise : exerciseRefs.entrySet()) {
+                out.writeInt(exercise.getKey());
+                out.writeInt(exercise.getValue());
+            }
+            for (Keeper k : entries.values()) {
+                int[] refs = gradeRefs.get(k);
+                out.writeInt(k.userId);
+                out.writeInt(k.exerciseId);
+                out.writeInt(k.latestId);
+                out.writeLong(k.latestTime);
+                out.writeInt(k.bestId);
+                out.writeLong(k.bestTime);
+                out.writeInt(refs[0]);
+                out.writeInt(refs[1]);
+            }
+            dataBytes.writeTo(out);
+        }
+        long written = Files.size(tmp);
+        if (written != fileSize) {
+            Files.delete(tmp);
+            throw new IOException("Snapshot size mismatch: wrote " + written + " bytes, expected " + fileSize);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    /**
+     * The latest and best submission of one (user, exercise) pair.
+     */
+    private static final class Keeper {
+        final int userId;
+        final int exerciseId;
+        int latestId;
+        long latestTime;
+        float[] latestGrades;
+        int bestId;
+        long bestTime;
+        double bestTotal;
+        float[] bestGrades;
+
+        Keeper(int userId, int exerciseId) {
+            this.userId = userId;
+            this.exerciseId = exerciseId;
+        }
+    }
+
+    /**
+     * Collects the latest and best submission, with grades, of every (user, exercise)
+     * pair, with the same points-weighted totals and tie-breaking as
+     * {@link Smarticulous#getLastSubmission} and {@link Smarticulous#getBestSubmission}.
+     */
+    private static final class KeeperCollector implements SubmissionVisitor {
+        /**
+         * Keyed by (userId, exerciseId) packed in a long, so iteration is in entry order.
+         */
+        final TreeMap<Long, Keeper> keepers = new TreeMap<>();
+        /**
+         * The points of every exercise's questions, by exercise id.
+         */
+        final Map<Integer, int[]> points;
+
+        KeeperCollector(Map<Integer, int[]> points) {
+            this.points = points;
+        }
+
+        @Override
+        public boolean visit(SubmissionView sub) {
+            long key = ((long) sub.userId << 32) | (sub.exerciseId & 0xffffffffL);
+            Keeper k = keepers.get(key);
+            double total = sub.total(points.getOrDefault(sub.exerciseId, new int[0]));
+            if (k == null) {
+                k = new Keeper(sub.userId, sub.exerciseId);
+                k.latestId = k.bestId = sub.id;
+                k.latestTime = k.bestTime = sub.submissionTime;
+                k.latestGrades = k.bestGrades = sub.copyGrades();
+                k.bestTotal = total;
+                keepers.put(key, k);
+                return true;
+            }
+            boolean newer = newer(sub.submissionTime, sub.id, k.latestTime, k.latestId);
+            if (newer) {
+                k.latestId = sub.id;
+                k.latestTime = sub.submissionTime;
+                k.latestGrades = sub.copyGrades();
+            }
+            // Ties go to the latest submission, as in getBestSubmission
+            if (total > k.bestTotal
+                    || (total == k.bestTotal && newer(sub.submissionTime, sub.id, k.bestTime, k.bestId))) {
+                k.bestId = sub.id;
+                k.bestTime = sub.submissionTime;
+                k.bestTotal = total;
+                k.bestGrades = newer ? k.latestGrades : sub.copyGrades();
+            }
+            return true;
+        }
+
+        private static boolean newer(long time, int id, long otherTime, int otherId) {
+            return time > otherTime || (time == otherTime && id > otherId);
+        }
+    }
+
+    private static int writeString(DataOutputStream data, String s) throws IOException {
+        if (s == null)
+            return -1;
+        int ref = data.size();
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+        return ref;
+    }
+
+    private static int writeGrades(DataOutputStream data, float[] grades) throws IOException {
+        int ref = data.size();
+        data.writeInt(grades.length);
+        for (float grade : grades)
+            data.writeFloat(grade);
+        return ref;
+    }
+
+    private static void checkSize(long size) throws IOException {
+        // DataOutputStream.size() saturates at Integer.MAX_VALUE
+        if (size >= Integer.MAX_VALUE)
+            throw new IOException("Snapshot exceeds 2 GB");
+    }
+
+    private static int hash(String username) {
+        return username.hashCode();
+    }
+
+    // ============= Reading ===============
+
+    /**
+     * Decode all exercises, with their questions, ordered by id.
+     *
+     * @return new exercise objects
+     */
+    List<Exercise> loadExercises() {
+        List<Exercise> exercises = new ArrayList<>(numExercises);
+        for (int i = 0; i < numExercises; ++i) {
+            int record = exercisesOffset + i * EXERCISE_BYTES;
+            exercises.add(readExercise(buf.getInt(record), dataOffset + buf.getInt(record + 4)));
+        }
+        return exercises;
+    }
+
+    /**
+     * Binary search the exercise table and decode one exercise.
+     *
+     * @param exerciseId the exercise id
+     * @return a new exercise object, or null if the snapshot has no such exercise
+     */
+    Exercise loadExercise(int exerciseId) {
+        int lo = 0;
+        int hi = numExercises - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int record = exercisesOffset + mid * EXERCISE_BYTES;
+            int id = buf.getInt(record);
+            if (id < exerciseId)
+                lo = mid + 1;
+            else if (id > exerciseId)
+                hi = mid - 1;
+            else
+                return readExercise(id, dataOffset + buf.getInt(record + 4));
+        }
+        return null;
+    }
+
+    /**
+     * Look up the latest submission of a user for an exercise.
+     *
+     * @return the submission, or null if the user has not submitted the exercise (or
+     *         is not in the snapshot)
+     */
+    Submission getLastSubmission(User user, Exercise exercise) {
+        return getSubmission(user, exercise, false);
+    }
+
+    /**
+     * Look up the best submission of a user for an exercise.
+     *
+     * @return the submission, or null if the user has not submitted the exercise (or
+     *         is not in the snapshot)
+     */
+    Submission getBestSubmission(User user, Exercise exercise) {
+        return getSubmission(user, exercise, true);
+    }
+
+    /**
+     * Look up the latest submissions of users for exercises, one entry lookup per
+     * (user, exercise) pair.
+     *
+     * @return the latest submissions by username and exercise id; users without any
+     *         of the exercises submitted are absent
+     */
+    Map<String, Map<Integer, Submission>> getLastSubmissions(Collection<User> users, Collection<Exercise> exercises) {
+        Map<String, Map<Integer, Submission>> latest = new HashMap<>();
+        for (User user : users) {
+            for (Exercise exercise : exercises) {
+                Submission submission = getLastSubmission(user, exercise);
+                if (submission != null)
+                    latest.computeIfAbsent(user.username, name -> new HashMap<>()).put(exercise.id, submission);
+            }
+        }
+        return latest;
+    }
+
+    private Submission getSubmission(User user, Exercise exercise, boolean best) {
+        int userId = findUserId(user.username);
+        if (userId == -1)
+            return null;
+        int entry = findEntry(userId, exercise.id);
+        if (entry == -1)
+            return null;
+        int id = buf.getInt(entry + (best ? 20 : 8));
+        long time = buf.getLong(entry + (best ? 24 : 12));
+        int gradesAt = dataOffset + buf.getInt(entry + (best ? 36 : 32));
+        float[] grades = new float[exercise.questions.size()];
+        int n = Math.min(buf.getInt(gradesAt), grades.length);
+        for (int i = 0; i < n; ++i)
+            grades[i] = buf.getFloat(gradesAt + 4 + i * 4);
+        return new Submission(id, user, exercise, new Date(time), grades);
+    }
+
+    /**
+     * Binary search the user table by hash, then compare the usernames with that hash.
+     *
+     * @return the user id, or -1
+     */
+    private int findUserId(String username) {
+        int hash = hash(username);
+        int lo = 0;
+        int hi = numUsers;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buf.getInt(usersOffset + mid * USER_BYTES) < hash)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        for (int i = lo; i < numUsers && buf.getInt(usersOffset + i * USER_BYTES) == hash; ++i) {
+            int record = usersOffset + i * USER_BYTES;
+            if (username.equals(readString(buf.getInt(record + 8))))
+                return buf.getInt(record + 4);
+        }
+        return -1;
+    }
+
+    /**
+     * Binary search the entry table.
+     *
+     * @return the absolute offset of the entry, or -1
+     */
+    private int findEntry(int userId, int exerciseId) {
+        long key = ((long) userId << 32) | (exerciseId & 0xffffffffL);
+        int lo = 0;
+        int hi = numEntries - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int record = entriesOffset + mid * ENTRY_BYTES;
+            long midKey = ((long) buf.getInt(record) << 32) | (buf.getInt(record + 4) & 0xffffffffL);
+            if (midKey < key)
+                lo = mid + 1;
+            else if (midKey > key)
+                hi = mid - 1;
+            else
+                return record;
+        }
+        return -1;
+    }
+
+    private Exercise readExercise(int id, int at) {
+        long dueDate = buf.getLong(at);
+        Exercise exercise = new Exercise(id, readString(buf.getInt(at + 8)),
+                dueDate != Long.MIN_VALUE ? new Date(dueDate) : null);
+        int numQuestions = buf.getInt(at + 12);
+        int q = at + 16;
+        for (int i = 0; i < numQuestions; ++i, q += 12)
+            exercise.addQuestion(readString(buf.getInt(q)), readString(buf.getInt(q + 4)), buf.getInt(q + 8));
+        return exercise;
+    }
+
+    private String readString(int ref) {
+        if (ref == -1)
+            return null;
+        int at = dataOffset + ref;
+        byte[] bytes = new byte[buf.getInt(at)];
+        buf.get(at + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
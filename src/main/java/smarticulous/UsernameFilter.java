@@ -0,0 +1,213 @@
+package smarticulous;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter over User.Username, used by {@link Smarticulous#verifyLogin} and
+ * {@link Smarticulous#storeSubmission} to reject usernames that definitely don't
+ * exist without querying the database.
+ * <p>
+ * The filter has no false negatives for usernames added to it, and a false-positive
+ * rate close to the one it was sized for as long as it holds at most
+ * {@link #getCapacity()} usernames. Usernames are compared exactly, like the
+ * Username column.
+ * <p>
+ * Adding and testing are thread-safe.
+ */
+public class UsernameFilter {
+
+    /**
+     * Smallest capacity a filter is built with, so a new database doesn't start with a
+     * filter that is saturated after a handful of users.
+     */
+    static final int MIN_CAPACITY = 1024;
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final int capacity;
+    private final double falsePositiveRate;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param capacity          the number of usernames the filter is sized for
+     * @param falsePositiveRate the target false-positive rate at capacity, in (0, 1)
+     */
+    public UsernameFilter(int capacity, double falsePositiveRate) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("falsePositiveRate must be in (0, 1): " + falsePositiveRate);
+        // Optimal sizing: m = -n ln(p) / ln(2)^2 bits and k = m/n ln(2) hash functions
+        long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        long words = Math.max(1, (m + Long.SIZE - 1) / Long.SIZE);
+        if (words > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Filter too large for capacity " + capacity);
+        this.bits = new AtomicLongArray((int) words);
+        this.numBits = words * Long.SIZE;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * Math.log(2)));
+        this.capacity = capacity;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Build a filter holding every username in the database, sized for twice the
+     * current number of users.
+     *
+     * @param db                an open connection
+     * @param falsePositiveRate the target false-positive rate
+     * @return the new filter
+     * @throws SQLException
+     */
+    static UsernameFilter build(Connection db, double falsePositiveRate) throws SQLException {
+        try (Statement stmt = db.createStatement()) {
+            int users;
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM User")) {
+                users = rs.next() ? rs.getInt(1) : 0;
+            }
+            UsernameFilter filter = new UsernameFilter(Math.max(MIN_CAPACITY, users * 2), falsePositiveRate);
+            try (ResultSet rs = stmt.executeQuery("SELECT Username FROM User")) {
+                while (rs.next())
+                    filter.add(rs.getString(1));
+            }
+            return filter;
+        }
+    }
+
+    /**
+     * Add a username.
+     *
+     * @param username the username; null is ignored
+     */
+    void add(String username) {
+        if (username == null)
+            return;
+        long h1 = hash(username);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+        boolean changed = false;
+        for (int i = 0; i < numHashes; ++i) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            long mask = 1L << bit;
+            int word = (int) (bit >>> 6);
+            long old = bits.getAndAccumulate(word, mask, (a, b) -> a | b);
+            changed |= (old & mask) == 0;
+        }
+        // A username that set no new bit was (very likely) already in the filter
+        if (changed)
+            count.increment();
+    }
+
+    /**
+     * Test whether a username may exist.
+     *
+     * @param username the username
+     * @return false if the username was definitely never added
+     */
+    public boolean mightContain(String username) {
+        if (username == null)
+            return false;
+        long h1 = hash(username);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < numHashes; ++i) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Test a username and count it as rejected if it definitely doesn't exist.
+     *
+     * @return false if the username was definitely never added
+     */
+    boolean admit(String username) {
+        if (mightContain(username))
+            return true;
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * @return true once the filter holds more usernames than it was sized for, so its
+     *         false-positive rate is above the target.
+     */
+    boolean isSaturated() {
+        return count.sum() > capacity;
+    }
+
+    /**
+     * @return the number of usernames the filter was sized for.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the (approximate) number of distinct usernames added.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the false-positive rate the filter was sized for.
+     */
+    public double getTargetFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * Estimate the current false-positive rate from the fraction of bits set.
+     *
+     * @return the probability that a username that was never added passes the filter
+     */
+    public double getFalsePositiveRate() {
+        long set = 0;
+        for (int i = 0; i < bits.length(); ++i)
+            set += Long.bitCount(bits.get(i));
+        return Math.pow((double) set / numBits, numHashes);
+    }
+
+    /**
+     * @return the size of the bit array, in bytes.
+     */
+    public long getMemoryBytes() {
+        return numBits / Byte.SIZE;
+    }
+
+    /**
+     * @return the number of usernames rejected without a database query.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 code units, finished with a MurmurHash3 mix.
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); ++i) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53e87f5L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,66 @@
+package smarticulous.db;
+
+/**
+ * One entry of the change feed: a user, exercise or submission that was written.
+ */
+public class Change {
+
+    /**
+     * What kind of entity changed.
+     */
+    public enum Type {
+        /**
+         * A user was added or updated ({@link #id} is the UserId).
+         */
+        USER,
+        /**
+         * An exercise was added or regraded ({@link #id} is the ExerciseId).
+         */
+        EXERCISE,
+        /**
+         * A submission was stored ({@link #id} is the SubmissionId).
+         */
+        SUBMISSION
+    }
+
+    /**
+     * Position in the feed. Strictly increasing, starting at 1.
+     */
+    public final long sequence;
+
+    /**
+     * When the change was recorded, in milliseconds since the epoch.
+     */
+    public final long time;
+
+    public final Type type;
+
+    /**
+     * The id of the changed entity.
+     */
+    public final int id;
+
+    /**
+     * The username of the changed user or of the submitter; null for exercises.
+     */
+    public final String username;
+
+    /**
+     * The exercise of a submission, or the id of an added exercise; -1 for users.
+     */
+    public final int exerciseId;
+
+    public Change(long sequence, long time, Type type, int id, String username, int exerciseId) {
+        this.sequence = sequence;
+        this.time = time;
+        this.type = type;
+        this.id = id;
+        this.username = username;
+        this.exerciseId = exerciseId;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + ":" + type + ":" + id;
+    }
+}
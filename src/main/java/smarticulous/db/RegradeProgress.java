@@ -0,0 +1,15 @@
+package smarticulous.db;
+
+/**
+ * Callback for bulk regrades, called after each committed chunk.
+ */
+@FunctionalInterface
+public interface RegradeProgress {
+    /**
+     * Report progress.
+     *
+     * @param done  the number of submissions regraded so far
+     * @param total the number of submissions to regrade
+     */
+    void progress(long done, long total);
+}
@@ -0,0 +1,46 @@
+package smarticulous.db;
+
+/**
+ * A full-text search match: an exercise, and the question that matches the whole
+ * query on its own, if any.
+ */
+public class SearchResult {
+    /**
+     * The id of the matching exercise.
+     */
+    public int exerciseId;
+
+    /**
+     * The name of the matching exercise.
+     */
+    public String exerciseName;
+
+    /**
+     * The id of the best question that matches the whole query, or 0 if the match
+     * involves the exercise name or is spread over several questions.
+     */
+    public int questionId;
+
+    /**
+     * An excerpt of the matching text, with the matched terms in [brackets].
+     */
+    public String snippet;
+
+    /**
+     * Relevance score; lower is better.
+     */
+    public double rank;
+
+    public SearchResult(int exerciseId, String exerciseName, int questionId, String snippet, double rank) {
+        this.exerciseId = exerciseId;
+        this.exerciseName = exerciseName;
+        this.questionId = questionId;
+        this.snippet = snippet;
+        this.rank = rank;
+    }
+
+    @Override
+    public String toString() {
+        return exerciseName + ": " + snippet;
+    }
+}
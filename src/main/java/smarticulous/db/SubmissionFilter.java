@@ -0,0 +1,43 @@
+package smarticulous.db;
+
+/**
+ * Restricts which submissions a scan visits. Every field is optional; an empty filter
+ * matches all submissions.
+ */
+public class SubmissionFilter {
+    /**
+     * Only visit submissions of this exercise, if not null.
+     */
+    public Integer exerciseId;
+
+    /**
+     * Only visit submissions of this user, if not null.
+     */
+    public Integer userId;
+
+    /**
+     * Only visit submissions made at or after this time (epoch millis).
+     */
+    public long fromTime = Long.MIN_VALUE;
+
+    /**
+     * Only visit submissions made before this time (epoch millis).
+     */
+    public long toTime = Long.MAX_VALUE;
+
+    public SubmissionFilter exercise(int exerciseId) {
+        this.exerciseId = exerciseId;
+        return this;
+    }
+
+    public SubmissionFilter user(int userId) {
+        this.userId = userId;
+        return this;
+    }
+
+    public SubmissionFilter between(long fromTime, long toTime) {
+        this.fromTime = fromTime;
+        this.toTime = toTime;
+        return this;
+    }
+}
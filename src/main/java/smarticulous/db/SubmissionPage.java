@@ -0,0 +1,75 @@
+package smarticulous.db;
+
+import java.util.List;
+
+/**
+ * One page of a user's submission history, newest first.
+ */
+public class SubmissionPage {
+
+    /**
+     * A keyset position in a submission history: the (SubmissionTime, SubmissionId) of
+     * the last submission on a page. The next page starts strictly after it.
+     */
+    public static class Cursor {
+        /**
+         * Submission time (epoch millis) of the last submission seen.
+         */
+        public final long submissionTime;
+
+        /**
+         * Id of the last submission seen.
+         */
+        public final int submissionId;
+
+        public Cursor(long submissionTime, int submissionId) {
+            this.submissionTime = submissionTime;
+            this.submissionId = submissionId;
+        }
+
+        /**
+         * Encode this cursor as an opaque string, e.g. for use in a URL.
+         *
+         * @return the encoded cursor
+         */
+        public String encode() {
+            return submissionTime + ":" + submissionId;
+        }
+
+        /**
+         * Decode a cursor previously produced by {@link #encode()}.
+         *
+         * @param encoded the encoded cursor, may be null or empty
+         * @return the cursor, or null if encoded was null or empty
+         * @throws IllegalArgumentException if the string is not a valid cursor
+         */
+        public static Cursor decode(String encoded) {
+            if (encoded == null || encoded.isEmpty())
+                return null;
+            int sep = encoded.indexOf(':');
+            if (sep < 0)
+                throw new IllegalArgumentException("Invalid cursor: " + encoded);
+            try {
+                return new Cursor(Long.parseLong(encoded.substring(0, sep)),
+                        Integer.parseInt(encoded.substring(sep + 1)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + encoded, e);
+            }
+        }
+    }
+
+    /**
+     * The submissions on this page, newest first.
+     */
+    public List<Submission> submissions;
+
+    /**
+     * Cursor for the next page, or null if this is the last page.
+     */
+    public Cursor next;
+
+    public SubmissionPage(List<Submission> submissions, Cursor next) {
+        this.submissions = submissions;
+        this.next = next;
+    }
+}
@@ -0,0 +1,83 @@
+package smarticulous.db;
+
+/**
+ * A mutable, reusable view of a single submission row, used by submission scans.
+ * <p>
+ * The same instance (and the same grade buffer) is handed to the visitor for every
+ * row, so a visitor must copy anything it wants to keep after {@code visit} returns.
+ */
+public class SubmissionView {
+    /**
+     * The submission id.
+     */
+    public int id;
+
+    /**
+     * The id of the submitting user.
+     */
+    public int userId;
+
+    /**
+     * The id of the exercise.
+     */
+    public int exerciseId;
+
+    /**
+     * Time of submission, in milliseconds since the epoch.
+     */
+    public long submissionTime;
+
+    /**
+     * Grade buffer; only the first {@link #numGrades} entries belong to this submission.
+     * (grades[i] is the grade for question i)
+     */
+    public float[] grades = new float[16];
+
+    /**
+     * Number of valid entries in {@link #grades}.
+     */
+    public int numGrades;
+
+    /**
+     * @param i a question index
+     * @return the grade for question i
+     */
+    public float grade(int i) {
+        if (i >= numGrades)
+            throw new IndexOutOfBoundsException("question " + i + " of " + numGrades);
+        return grades[i];
+    }
+
+    /**
+     * @return the total grade of this submission.
+     */
+    public double total() {
+        double total = 0;
+        for (int i = 0; i < numGrades; ++i)
+            total += grades[i];
+        return total;
+    }
+
+    /**
+     * @param points points[i] is the points of question i
+     * @return the total grade of this submission, each grade weighted by its
+     *         question's points (grades without a question count for nothing)
+     */
+    public double total(int[] points) {
+        double total = 0;
+        for (int i = 0; i < Math.min(numGrades, points.length); ++i)
+            total += (double) grades[i] * points[i];
+        return total;
+    }
+
+    /**
+     * Copy this view into a new, independent grade array.
+     *
+     * @return a copy of the valid grades
+     */
+    public float[] copyGrades() {
+        float[] copy = new float[numGrades];
+        System.arraycopy(grades, 0, copy, 0, numGrades);
+        return copy;
+    }
+}
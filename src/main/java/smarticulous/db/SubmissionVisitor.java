@@ -0,0 +1,18 @@
+package smarticulous.db;
+
+import java.sql.SQLException;
+
+/**
+ * Callback for submission scans.
+ */
+@FunctionalInterface
+public interface SubmissionVisitor {
+    /**
+     * Visit one submission.
+     *
+     * @param submission a view of the current row; only valid until this call returns
+     * @return true to continue the scan, false to stop it
+     * @throws SQLException to abort the scan
+     */
+    boolean visit(SubmissionView submission) throws SQLException;
+}
@@ -0,0 +1,454 @@
+package smarticulous.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import smarticulous.AdmissionController;
+import smarticulous.OperationRunner;
+import smarticulous.Smarticulous;
+import smarticulous.SubmissionRejectedException;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A lightweight JSON-over-HTTP front end for {@link Smarticulous}, built on the JDK's
+ * {@code com.sun.net.httpserver} and running every request on its own virtual thread.
+ * <p>
+ * Endpoints:
+ * <table>
+ * <caption>HTTP API</caption>
+ * <tr><th>Request</th><th>Maps to</th></tr>
+ * <tr><td>POST /login {"username", "password"}</td><td>{@link Smarticulous#verifyLogin}</td></tr>
+ * <tr><td>GET /exercises</td><td>{@link Smarticulous#loadExercises}</td></tr>
+ * <tr><td>POST /submissions {"username", "password", "exerciseId", "grades", ["submissionTime"]}</td>
+ * <td>{@link Smarticulous#storeSubmission}</td></tr>
+ * <tr><td>GET /submissions/last?username=..&amp;exerciseId=..</td><td>{@link Smarticulous#getLastSubmission}</td></tr>
+ * <tr><td>GET /submissions/best?username=..&amp;exerciseId=..</td><td>{@link Smarticulous#getBestSubmission}</td></tr>
+ * </table>
+ * The API is stateless: /login only checks a password, and every write carries the
+ * user's password, which is checked with {@link Smarticulous#verifyLogin} in the same
+ * operation as the write; a wrong or missing password is answered with 401. Reads
+ * are not authenticated, so by default the server only listens on the loopback
+ * interface; exposing it more widely (behind TLS) is a deliberate choice of bind
+ * address.
+ * <p>
+ * Malformed requests (including bodies over {@value #MAX_BODY_BYTES} bytes, and
+ * submissions for unknown exercises or with the wrong number of grades) are answered
+ * with 400. A {@link SubmissionRejectedException} is answered with 429 and a
+ * Retry-After header.
+ * Submissions are admitted by the instance's {@link AdmissionController} (if it has
+ * one) before they wait for the database, so the in-flight cap counts waiting
+ * submissions too.
+ * <p>
+ * {@link Smarticulous} owns a single JDBC connection, so calls into it are serialized
+ * by an {@link OperationRunner}; virtual threads waiting for it are simply parked.
+ * Every request has a deadline, and a request that misses it (waiting or running) is
+ * answered with 503, so a slow request can't hold up the others indefinitely. Other
+ * work on the same instance while the server runs (staff tools, regrades, archive
+ * runs) must go through {@link #getOperations()} as well; the deadlines don't cover
+ * calls that bypass it.
+ */
+public class ApiServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Smarticulous smarticulous;
+
+    /**
+     * The default deadline of a request, in milliseconds.
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The largest request body accepted, in bytes.
+     */
+    static final int MAX_BODY_BYTES = 64 * 1024;
+
+    /**
+     * Serializes access to the {@link Smarticulous} instance and enforces request
+     * deadlines.
+     */
+    private final OperationRunner operations;
+
+    /**
+     * Create a server for an already opened {@link Smarticulous} instance, listening
+     * on the loopback interface, with the default request deadline.
+     *
+     * @param smarticulous the backing instance (its DB, or a snapshot, must be open)
+     * @param port         the port to listen on, or 0 for any free port
+     * @throws IOException if the server socket can't be bound
+     */
+    public ApiServer(Smarticulous smarticulous, int port) throws IOException {
+        this(smarticulous, port, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Create a server for an already opened {@link Smarticulous} instance, listening
+     * on the loopback interface.
+     *
+     * @param smarticulous         the backing instance (its DB, or a snapshot, must be open)
+     * @param port                 the port to listen on, or 0 for any free port
+     * @param requestTimeoutMillis the deadline of every request's database work
+     * @throws IOException if the server socket can't be bound
+     */
+    public ApiServer(Smarticulous smarticulous, int port, long requestTimeoutMillis) throws IOException {
+        this(smarticulous, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), requestTimeoutMillis);
+    }
+
+    /**
+     * Create a server for an already opened {@link Smarticulous} instance.
+     *
+     * @param smarticulous         the backing instance (its DB, or a snapshot, must be open)
+     * @param address              the address to listen on; reads are not
+     *                             authenticated, so anything but loopback exposes them
+     * @param requestTimeoutMillis the deadline of every request's database work
+     * @throws IOException if the server socket can't be bound
+     */
+    public ApiServer(Smarticulous smarticulous, InetSocketAddress address, long requestTimeoutMillis)
+            throws IOException {
+        this.smarticulous = smarticulous;
+        this.operations = new OperationRunner(smarticulous, requestTimeoutMillis);
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/login", this::login);
+        server.createContext("/exercises", this::exercises);
+        server.createContext("/submissions", this::submissions);
+    }
+
+    /**
+     * Start accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return the port the server is listening on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the runner of the server's database operations: for its metrics, and for
+     *         any other work on the instance while the server runs.
+     */
+    public OperationRunner getOperations() {
+        return operations;
+    }
+
+    /**
+     * Stop the server, waiting briefly for requests in progress. Does not close the DB.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        operations.close();
+    }
+
+    // ============= Handlers =============
+
+    private void login(HttpExchange exchange) throws IOException {
+        handle(exchange, "POST", () -> {
+            Map<String, Object> body = readBody(exchange);
+            String username = requireString(body, "username");
+            String password = requireString(body, "password");
+            boolean ok = operations.call(s -> s.verifyLogin(username, password));
+            return response(200, mapOf("ok", ok));
+        });
+    }
+
+    private void exercises(HttpExchange exchange) throws IOException {
+        handle(exchange, "GET", () -> {
+            List<Exercise> exercises = operations.call(Smarticulous::loadExercises);
+            List<Object> json = new ArrayList<>();
+            for (Exercise exercise : exercises)
+                json.add(exerciseJson(exercise));
+            return response(200, json);
+        });
+    }
+
+    private void submissions(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/submissions")) {
+            handle(exchange, "POST", () -> storeSubmission(exchange));
+        } else if (path.equals("/submissions/last")) {
+            handle(exchange, "GET", () -> querySubmission(exchange, false));
+        } else if (path.equals("/submissions/best")) {
+            handle(exchange, "GET", () -> querySubmission(exchange, true));
+        } else {
+            handle(exchange, null, () -> response(404, mapOf("error", "Not found")));
+        }
+    }
+
+    private Response storeSubmission(HttpExchange exchange) throws IOException, SQLException {
+        Map<String, Object> body = readBody(exchange);
+        String username = requireString(body, "username");
+        int exerciseId = requireNumber(body, "exerciseId").intValue();
+        Object passwordJson = body.get("password");
+        Object gradesJson = body.get("grades");
+        if (!(gradesJson instanceof List))
+            throw new IllegalArgumentException("Missing array field 'grades'");
+        List<?> gradeList = (List<?>) gradesJson;
+        float[] grades = new float[gradeList.size()];
+        for (int i = 0; i < grades.length; ++i) {
+            if (!(gradeList.get(i) instanceof Number))
+                throw new IllegalArgumentException("Grades must be numbers");
+            grades[i] = ((Number) gradeList.get(i)).floatValue();
+        }
+        Object time = body.get("submissionTime");
+        Date submissionTime = time instanceof Number ? new Date(((Number) time).longValue()) : new Date();
+
+        if (!(passwordJson instanceof String))
+            return unauthorized();
+        String password = (String) passwordJson;
+
+        User user = new User(username, null, null);
+        AdmissionController admission = smarticulous.getAdmissionController();
+        if (admission == null) {
+            return operations.call(s -> {
+                if (!s.verifyLogin(username, password))
+                    return unauthorized();
+                return stored(s.storeSubmission(validSubmission(s, user, exerciseId, submissionTime, grades)));
+            });
+        }
+        // Admitted before waiting for the connection, so that a saturated server
+        // rejects submissions right away instead of queueing them
+        try (AdmissionController.Permit permit = admission.admit(username)) {
+            return operations.call(s -> {
+                if (!s.verifyLogin(username, password))
+                    return unauthorized();
+                return stored(s.storeSubmission(validSubmission(s, user, exerciseId, submissionTime, grades),
+                        permit));
+            });
+        }
+    }
+
+    private static Response stored(int id) {
+        if (id == -1)
+            return response(404, mapOf("error", "Unknown user"));
+        return response(201, mapOf("id", id));
+    }
+
+    private static Response unauthorized() {
+        return response(401, mapOf("error", "Wrong username or password"));
+    }
+
+    /**
+     * Build a submission for a stored exercise.
+     *
+     * @throws IllegalArgumentException if the exercise doesn't exist or the number of
+     *                                  grades doesn't match its questions
+     */
+    private static Submission validSubmission(Smarticulous s, User user, int exerciseId, Date submissionTime,
+            float[] grades) throws SQLException {
+        Exercise exercise = s.loadExercise(exerciseId);
+        if (exercise == null)
+            throw new IllegalArgumentException("Unknown exercise " + exerciseId);
+        if (grades.length != exercise.questions.size())
+            throw new IllegalArgumentException("Exercise " + exerciseId + " has " + exercise.questions.size()
+                    + " questions, got " + grades.length + " grades");
+        return new Submission(user, exercise, submissionTime, grades);
+    }
+
+    private Response querySubmission(HttpExchange exchange, boolean best) throws SQLException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String username = query.get("username");
+        String exerciseParam = query.get("exerciseId");
+        if (username == null || exerciseParam == null)
+            throw new IllegalArgumentException("username and exerciseId are required");
+        int exerciseId;
+        try {
+            exerciseId = Integer.parseInt(exerciseParam);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid exerciseId: " + exerciseParam);
+        }
+
+        User user = new User(username, null, null);
+        return operations.call(s -> {
+            Exercise exercise = s.loadExercise(exerciseId);
+            if (exercise == null)
+                return response(404, mapOf("error", "Unknown exercise"));
+            Submission submission = best ? s.getBestSubmission(user, exercise) : s.getLastSubmission(user, exercise);
+            if (submission == null)
+                return response(404, mapOf("error", "No submission"));
+            return response(200, submissionJson(submission));
+        });
+    }
+
+    // ============= JSON mapping =============
+
+    private static Map<String, Object> exerciseJson(Exercise exercise) {
+        List<Object> questions = new ArrayList<>();
+        for (Exercise.Question question : exercise.questions)
+            questions.add(mapOf("name", question.name, "desc", question.desc, "points", question.points));
+        return mapOf("id", exercise.id, "name", exercise.name,
+                "dueDate", exercise.dueDate == null ? null : exercise.dueDate.getTime(),
+                "questions", questions);
+    }
+
+    private static Map<String, Object> submissionJson(Submission submission) {
+        return mapOf("id", submission.id, "username", submission.user.username,
+                "exerciseId", submission.exercise.id,
+                "submissionTime", submission.submissionTime.getTime(),
+                "grades", submission.questionGrades);
+    }
+
+    private static Map<String, Object> mapOf(Object... keyValues) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2)
+            map.put((String) keyValues[i], keyValues[i + 1]);
+        return map;
+    }
+
+    // ============= Plumbing =============
+
+    /**
+     * A status code and a JSON body.
+     */
+    private static final class Response {
+        final int status;
+        final Object body;
+        long retryAfterMillis = -1;
+
+        Response(int status, Object body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Response handle() throws IOException, SQLException;
+    }
+
+    private static Response response(int status, Object body) {
+        return new Response(status, body);
+    }
+
+    /**
+     * Run a handler and translate its result or failure into an HTTP response.
+     *
+     * @param method the only accepted method, or null for any
+     */
+    private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        Response response;
+        if (method != null && !method.equals(exchange.getRequestMethod())) {
+            response = response(405, mapOf("error", "Method not allowed"));
+        } else {
+            try {
+                response = handler.handle();
+            } catch (SubmissionRejectedException e) {
+                response = response(429, mapOf("error", e.getMessage(), "reason", e.getReason().name()));
+                response.retryAfterMillis = e.getRetryAfterMillis();
+            } catch (SQLTimeoutException e) {
+                response = response(503, mapOf("error", e.getMessage()));
+                response.retryAfterMillis = 1000;
+            } catch (IllegalArgumentException e) {
+                response = response(400, mapOf("error", e.getMessage()));
+            } catch (SQLException e) {
+                response = response(500, mapOf("error", e.getMessage()));
+            } catch (Throwable e) {
+                // Anything else is a bug, but the client still gets an answer
+                response = response(500, mapOf("error", "Internal error: " + e));
+            }
+        }
+
+        byte[] bytes = Json.write(response.body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (response.retryAfterMillis >= 0) {
+            // Retry-After is in whole seconds; round up
+            exchange.getResponseHeaders().set("Retry-After",
+                    Long.toString((response.retryAfterMillis + 999) / 1000));
+        }
+        exchange.sendResponseHeaders(response.status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readBody(HttpExchange exchange) throws IOException {
+        byte[] bytes;
+        try (InputStream in = exchange.getRequestBody()) {
+            bytes = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (bytes.length > MAX_BODY_BYTES)
+            throw new IllegalArgumentException("Request body exceeds " + MAX_BODY_BYTES + " bytes");
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        Object body = Json.parse(text);
+        if (!(body instanceof Map))
+            throw new IllegalArgumentException("Request body must be a JSON object");
+        return (Map<String, Object>) body;
+    }
+
+    private static String requireString(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (!(value instanceof String))
+            throw new IllegalArgumentException("Missing string field '" + field + "'");
+        return (String) value;
+    }
+
+    private static Number requireNumber(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (!(value instanceof Number))
+            throw new IllegalArgumentException("Missing numeric field '" + field + "'");
+        return (Number) value;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null)
+            return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0)
+                continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    /**
+     * Serve a database over HTTP on the loopback interface.
+     * <p>
+     * Usage: {@code ApiServer <jdbc-url> [port]}
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1)
+            throw new IllegalArgumentException("Usage: ApiServer <jdbc-url> [port]");
+        Smarticulous smarticulous = new Smarticulous();
+        smarticulous.openDB(args[0]);
+        ApiServer server = new ApiServer(smarticulous, args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+        server.start();
+        System.getLogger(ApiServer.class.getName()).log(System.Logger.Level.INFO,
+                "Listening on " + server.server.getAddress());
+    }
+}
@@ -0,0 +1,300 @@
+package smarticulous.http;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for the HTTP API.
+ * <p>
+ * Values are represented as {@link Map} (objects), {@link List} (arrays),
+ * {@link String}, {@link Number}, {@link Boolean} and null.
+ */
+final class Json {
+
+    private Json() {
+    }
+
+    // ============= Writing =============
+
+    /**
+     * Serialize a value to JSON.
+     *
+     * @param value a Map, Iterable, array of float, String, Number, Boolean or null
+     * @return the JSON text
+     */
+    static String write(Object value) {
+        StringBuilder out = new StringBuilder();
+        write(out, value);
+        return out.toString();
+    }
+
+    private static void write(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof Float || value instanceof Double) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d))
+                out.append("null");
+            else
+                out.append(value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first)
+                    out.append(',');
+                first = false;
+                writeString(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                write(out, entry.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof Iterable) {
+            out.append('[');
+            boolean first = true;
+            for (Object item : (Iterable<?>) value) {
+                if (!first)
+                    out.append(',');
+                first = false;
+                write(out, item);
+            }
+            out.append(']');
+        } else if (value instanceof float[]) {
+            float[] array = (float[]) value;
+            out.append('[');
+            for (int i = 0; i < array.length; ++i) {
+                if (i > 0)
+                    out.append(',');
+                write(out, array[i]);
+            }
+            out.append(']');
+        } else {
+            throw new IllegalArgumentException("Can't serialize " + value.getClass());
+        }
+    }
+
+    private static void writeString(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        out.append(String.format("\\u%04x", (int) c));
+                    else
+                        out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    // ============= Parsing =============
+
+    /**
+     * Parse JSON text.
+     *
+     * @param text the JSON text
+     * @return the parsed value
+     * @throws IllegalArgumentException if the text is not valid JSON, or nests objects
+     *                                  and arrays deeper than {@link #MAX_DEPTH}
+     */
+    static Object parse(String text) {
+        Parser parser = new Parser(text);
+        Object value = parser.value();
+        parser.skipWhitespace();
+        if (parser.pos != text.length())
+            throw parser.error("Trailing characters");
+        return value;
+    }
+
+    /**
+     * The deepest nesting of objects and arrays accepted by {@link #parse(String)}; the
+     * parser is recursive, so this bounds its stack use.
+     */
+    static final int MAX_DEPTH = 64;
+
+    private static final class Parser {
+        final String text;
+        int pos;
+        int depth;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos);
+        }
+
+        void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+                ++pos;
+        }
+
+        char peek() {
+            skipWhitespace();
+            if (pos >= text.length())
+                throw error("Unexpected end of input");
+            return text.charAt(pos);
+        }
+
+        void expect(char c) {
+            if (peek() != c)
+                throw error("Expected '" + c + "'");
+            ++pos;
+        }
+
+        Object value() {
+            char c = peek();
+            switch (c) {
+                case '{':
+                case '[':
+                    if (++depth > MAX_DEPTH)
+                        throw error("Nesting deeper than " + MAX_DEPTH);
+                    Object nested = c == '{' ? object() : array();
+                    --depth;
+                    return nested;
+                case '"':
+                    return string();
+                case 't':
+                    return literal("true", Boolean.TRUE);
+                case 'f':
+                    return literal("false", Boolean.FALSE);
+                case 'n':
+                    return literal("null", null);
+                default:
+                    return number();
+            }
+        }
+
+        Map<String, Object> object() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            expect('{');
+            if (peek() == '}') {
+                ++pos;
+                return map;
+            }
+            while (true) {
+                String key = string();
+                expect(':');
+                map.put(key, value());
+                if (peek() == ',') {
+                    ++pos;
+                } else {
+                    expect('}');
+                    return map;
+                }
+            }
+        }
+
+        List<Object> array() {
+            List<Object> list = new ArrayList<>();
+            expect('[');
+            if (peek() == ']') {
+                ++pos;
+                return list;
+            }
+            while (true) {
+                list.add(value());
+                if (peek() == ',') {
+                    ++pos;
+                } else {
+                    expect(']');
+                    return list;
+                }
+            }
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder out = new StringBuilder();
+            while (true) {
+                if (pos >= text.length())
+                    throw error("Unterminated string");
+                char c = text.charAt(pos++);
+                if (c == '"')
+                    return out.toString();
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                if (pos >= text.length())
+                    throw error("Unterminated escape");
+                char e = text.charAt(pos++);
+                switch (e) {
+                    case 'b':
+                        out.append('\b');
+                        break;
+                    case 'f':
+                        out.append('\f');
+                        break;
+                    case 'n':
+                        out.append('\n');
+                        break;
+                    case 'r':
+                        out.append('\r');
+                        break;
+                    case 't':
+                        out.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length())
+                            throw error("Bad unicode escape");
+                        try {
+                            out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw error("Bad unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        out.append(e);
+                }
+            }
+        }
+
+        Object literal(String word, Object value) {
+            if (!text.startsWith(word, pos))
+                throw error("Unexpected token");
+            pos += word.length();
+            return value;
+        }
+
+        Number number() {
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+                ++pos;
+            if (start == pos)
+                throw error("Unexpected character");
+            String token = text.substring(start, pos);
+            try {
+                if (token.indexOf('.') < 0 && token.indexOf('e') < 0 && token.indexOf('E') < 0)
+                    return Long.parseLong(token);
+                return Double.parseDouble(token);
+            } catch (NumberFormatException ex) {
+                throw error("Bad number '" + token + "'");
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Compares the row-per-question and packed grade formats: database size, and the
+ * time to store and read back submissions.
+ * <p>
+ * Not a unit test; run it manually, e.g. {@code java smarticulous.PackedGradesBenchmark [submissions]}.
+ */
+public class PackedGradesBenchmark {
+
+    static final int USERS = 200;
+    static final int QUESTIONS = 12;
+
+    public static void main(String[] args) throws Exception {
+        int submissions = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        System.out.println("format  submissions  file-bytes  write-ms  read-ms");
+        run("rows", false, submissions);
+        run("packed", true, submissions);
+    }
+
+    static void run(String label, boolean packed, int submissions) throws Exception {
+        File file = File.createTempFile("bench-" + label, ".sqlite");
+        file.delete();
+        Smarticulous smarticulous = new Smarticulous();
+        try {
+            smarticulous.openDB("jdbc:sqlite:" + file.getPath());
+            if (packed)
+                smarticulous.enablePackedGrades();
+
+            Exercise ex = new Exercise(1, "bench", new Date());
+            for (int q = 0; q < QUESTIONS; ++q)
+                ex.addQuestion("q" + q, "question " + q, 10);
+            smarticulous.addExercise(ex);
+
+            User[] users = new User[USERS];
+            for (int u = 0; u < USERS; ++u) {
+                users[u] = new User("user" + u, "First", "Last");
+                smarticulous.addOrUpdateUser(users[u], "pass");
+            }
+
+            Random rand = new Random(42);
+            long start = System.nanoTime();
+            smarticulous.db.setAutoCommit(false);
+            for (int i = 0; i < submissions; ++i) {
+                float[] grades = new float[QUESTIONS];
+                for (int q = 0; q < QUESTIONS; ++q)
+                    grades[q] = rand.nextFloat() * 10;
+                smarticulous.storeSubmission(new Submission(users[i % USERS], ex, new Date(i), grades));
+            }
+            smarticulous.db.commit();
+            smarticulous.db.setAutoCommit(true);
+            long writeMs = (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            for (int u = 0; u < USERS; ++u)
+                smarticulous.getLastSubmission(users[u], ex);
+            long readMs = (System.nanoTime() - start) / 1_000_000;
+
+            smarticulous.db.createStatement().execute("VACUUM");
+            smarticulous.closeDB();
+
+            System.out.printf("%-7s %11d  %10d  %8d  %7d%n", label, submissions, file.length(), writeMs, readMs);
+        } finally {
+            smarticulous.closeDB();
+            file.delete();
+        }
+    }
+}
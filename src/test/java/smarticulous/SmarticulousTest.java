@@ -3,15 +3,39 @@ package smarticulous;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import smarticulous.db.Change;
 import smarticulous.db.Exercise;
+import smarticulous.db.SearchResult;
 import smarticulous.db.Submission;
+import smarticulous.db.SubmissionFilter;
+import smarticulous.db.SubmissionPage;
 import smarticulous.db.User;
+import smarticulous.http.ApiServer;
 
 import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 
@@ -277,4 +301,1312 @@ public class SmarticulousTest {
         st.close();
         smarticulous.closeDB();
     }
+
+    /**
+     * Opening a database records the schema version, and reopening it applies nothing.
+     */
+    @Test
+    public void migrate_userVersion() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        assertEquals("Schema version wasn't recorded",
+                Migrations.LATEST_VERSION, Migrations.currentVersion(smarticulous.db));
+        smarticulous.closeDB();
+
+        smarticulous.openDB(db.getDbUrl());
+        assertEquals("An up-to-date database was migrated again", 0, Migrations.migrate(smarticulous.db));
+        db.checkTableStructure();
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_historyPages() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = db.getExercise(1);
+
+        // Store 5 submissions, oldest first
+        List<Integer> expected = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; ++i) {
+            float[] grades = new float[ex.questions.size()];
+            grades[0] = i;
+            expected.add(0, smarticulous.storeSubmission(new Submission(user, ex, new Date(now + i * 1000), grades)));
+        }
+
+        List<Integer> actual = new ArrayList<>();
+        SubmissionPage.Cursor cursor = null;
+        int pages = 0;
+        do {
+            SubmissionPage page = smarticulous.getSubmissionHistory(user, ex, cursor, 2);
+            for (Submission sub : page.submissions) {
+                assertEquals("Grades weren't read back", ex.questions.size(), sub.questionGrades.length);
+                actual.add(sub.id);
+            }
+            cursor = page.next;
+            ++pages;
+        } while (cursor != null);
+
+        assertEquals("History isn't newest first or is incomplete", expected, actual);
+        assertEquals("Wrong number of pages", 3, pages);
+
+        SubmissionPage all = smarticulous.getSubmissionHistory(user, null, 10);
+        assertEquals("All-exercises history is incomplete", 5, all.submissions.size());
+        assertNull("Last page shouldn't have a cursor", all.next);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void packedGrades_roundTrip() {
+        float[] grades = {0f, 1.5f, -2.25f, Float.MAX_VALUE, 8.5f};
+        byte[] packed = PackedGrades.encode(grades);
+        assertEquals("Wrong packed size", grades.length * 4, packed.length);
+        assertArrayEquals(grades, PackedGrades.decode(packed, grades.length), 0f);
+        assertEquals(0f, PackedGrades.decode(packed, grades.length + 1)[grades.length], 0f);
+    }
+
+    @Test
+    public void packedGrades_migration() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = db.getExercise(1);
+
+        float[] grades = new float[ex.questions.size()];
+        for (int i = 0; i < grades.length; ++i)
+            grades[i] = rand.nextFloat() * 10;
+        int sid = smarticulous.storeSubmission(new Submission(user, ex, new Date(), grades));
+
+        // Existing QuestionGrade rows are packed by the migration
+        assertTrue("No submissions were converted", smarticulous.enablePackedGrades() > 0);
+        Submission last = smarticulous.getLastSubmission(user, ex);
+        assertEquals(sid, last.id);
+        assertArrayEquals("Grades changed during migration", grades, last.questionGrades, 0f);
+
+        // New submissions are stored packed, and the best one is found by its total
+        float[] better = new float[grades.length];
+        java.util.Arrays.fill(better, 100f);
+        int betterId = smarticulous.storeSubmission(new Submission(user, ex, new Date(System.currentTimeMillis() - 1000), better));
+        assertEquals(sid, smarticulous.getLastSubmission(user, ex).id);
+        Submission best = smarticulous.getBestSubmission(user, ex);
+        assertEquals(betterId, best.id);
+        assertArrayEquals(better, best.questionGrades, 0f);
+        assertEquals(2, smarticulous.getSubmissionHistory(user, ex, null, 10).submissions.size());
+
+        smarticulous.closeDB();
+    }
+
+    /**
+     * The best submission has the highest total when each grade is weighted by its
+     * question's points, in both grade formats.
+     */
+    @Test
+    public void packedGrades_bestIsWeighted() throws Exception {
+        Exercise ex = new Exercise(db.getNumExercises() + 1, db.getRandomWord(), new Date());
+        ex.addQuestion(db.getRandomWord(), db.getRandomDesc(), 1);
+        ex.addQuestion(db.getRandomWord(), db.getRandomDesc(), 10);
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.addExercise(ex);
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        long now = System.currentTimeMillis();
+        int heavy = smarticulous.storeSubmission(new Submission(user, ex, new Date(now), new float[] { 0, 5 }));
+        // More raw grade and later, but on the cheap question
+        smarticulous.storeSubmission(new Submission(user, ex, new Date(now + 1000), new float[] { 10, 0 }));
+
+        assertEquals("Row format best isn't weighted by points", heavy, smarticulous.getBestSubmission(user, ex).id);
+        smarticulous.enablePackedGrades();
+        assertEquals("Packed format best isn't weighted by points", heavy, smarticulous.getBestSubmission(user, ex).id);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_scan() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        int uid = smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = db.getExercise(1);
+
+        List<float[]> stored = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            float[] grades = new float[ex.questions.size()];
+            for (int j = 0; j < grades.length; ++j)
+                grades[j] = rand.nextFloat();
+            stored.add(grades);
+            smarticulous.storeSubmission(new Submission(user, ex, new Date(), grades));
+        }
+
+        List<float[]> scanned = new ArrayList<>();
+        int visited = smarticulous.scanSubmissions(new SubmissionFilter().user(uid), sub -> {
+            assertEquals(uid, sub.userId);
+            assertEquals(ex.id, sub.exerciseId);
+            scanned.add(sub.copyGrades());
+            return true;
+        });
+        assertEquals("Scan didn't visit all the user's submissions", 3, visited);
+        for (int i = 0; i < stored.size(); ++i)
+            assertArrayEquals(stored.get(i), scanned.get(i), 0f);
+
+        // Returning false stops the scan
+        assertEquals(1, smarticulous.scanSubmissions(new SubmissionFilter(), sub -> false));
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void report_lateSubmissions() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        Exercise ex = createRandomExercise();
+        smarticulous.addExercise(ex);
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+
+        long due = ex.dueDate.getTime();
+        float[] grades = new float[ex.questions.size()];
+        smarticulous.storeSubmission(new Submission(user, ex, new Date(due - 5000), grades));
+        int late = smarticulous.storeSubmission(new Submission(user, ex, new Date(due + 1000), grades));
+        smarticulous.storeSubmission(new Submission(user, ex, new Date(due + 60000), grades));
+
+        List<Integer> lateIds = new ArrayList<>();
+        smarticulous.scanLateSubmissions(ex, sub -> lateIds.add(sub.id));
+        assertEquals("Wrong number of late submissions", 2, lateIds.size());
+        assertEquals("Late submissions aren't sorted by time", late, (int) lateIds.get(0));
+
+        assertEquals("Wrong number of submissions in the window", 2,
+                smarticulous.scanDueDateWindow(ex, 10000, 10000, sub -> true));
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void admission_rateLimit() throws Exception {
+        AdmissionController admission = new AdmissionController(0.1, 2, 100);
+
+        // A burst of 2 is admitted, the third is rejected with a hint
+        admission.admit("alice").close();
+        admission.admit("alice").close();
+        try {
+            admission.admit("alice");
+            fail("Rate limit wasn't enforced");
+        } catch (SubmissionRejectedException e) {
+            assertEquals(SubmissionRejectedException.Reason.RATE_LIMITED, e.getReason());
+            assertTrue("No retry-after hint", e.getRetryAfterMillis() > 0);
+        }
+        // Other users have their own bucket
+        admission.admit("bob").close();
+
+        assertEquals(3, admission.getAccepted());
+        assertEquals(1, admission.getRateLimited());
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    public void admission_concurrencyCap() throws Exception {
+        AdmissionController admission = new AdmissionController(1000, 1000, 1);
+        try (AdmissionController.Permit permit = admission.admit("alice")) {
+            try {
+                admission.admit("bob");
+                fail("Concurrency cap wasn't enforced");
+            } catch (SubmissionRejectedException e) {
+                assertEquals(SubmissionRejectedException.Reason.OVERLOADED, e.getReason());
+            }
+        }
+        admission.admit("bob").close();
+        assertEquals(1, admission.getOverloaded());
+    }
+
+    @Test
+    public void admission_storeSubmission() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.setAdmissionController(new AdmissionController(0.1, 1, 10));
+
+        Submission sub = createRandomSubmission();
+        assertTrue(smarticulous.storeSubmission(sub) > 0);
+        try {
+            smarticulous.storeSubmission(sub);
+            fail("Second submission should have been throttled");
+        } catch (SubmissionRejectedException e) {
+            // expected
+        }
+
+        smarticulous.closeDB();
+    }
+
+    /**
+     * Submissions waiting for the connection count against the in-flight cap, so an
+     * overloaded server rejects instead of queueing.
+     */
+    @Test
+    public void admission_beforeConnection() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        AdmissionController admission = new AdmissionController(1000, 1000, 1);
+        smarticulous.setAdmissionController(admission);
+        User user = db.getUser(1);
+        String pass = db.getPassword(1);
+        Exercise ex = db.getExercise(1);
+
+        try (ApiServer server = new ApiServer(smarticulous, 0)) {
+            server.start();
+            // Hold the connection, so that submissions have to wait for it
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Integer> holder = server.getOperations().submit(5000, s -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            });
+            started.await();
+
+            StringBuilder grades = new StringBuilder();
+            for (int i = 0; i < ex.questions.size(); ++i)
+                grades.append(i == 0 ? "" : ",").append(i);
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort()
+                    + "/submissions")).POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"" + user.username
+                            + "\",\"password\":\"" + pass + "\",\"exerciseId\":" + ex.id
+                            + ",\"grades\":[" + grades + "]}")).build();
+            HttpClient client = HttpClient.newHttpClient();
+            CompletableFuture<HttpResponse<String>> waiting = client.sendAsync(request,
+                    HttpResponse.BodyHandlers.ofString());
+            while (admission.getInFlight() == 0)
+                Thread.sleep(1);
+
+            HttpResponse<String> rejected = client.send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals("A waiting submission didn't count as in flight", 429, rejected.statusCode());
+            assertTrue(rejected.body().contains("OVERLOADED"));
+
+            release.countDown();
+            holder.get();
+            assertEquals(201, waiting.get().statusCode());
+            assertEquals(0, admission.getInFlight());
+        }
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void http_deadlineCoversStaffWork() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        try (ApiServer server = new ApiServer(smarticulous, 0, 200)) {
+            server.start();
+            String base = "http://localhost:" + server.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+
+            // Staff work shares the server's runner, so requests time out behind it
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Integer> staff = server.getOperations().submit(10000, s -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return s.loadExercises().size();
+            });
+            started.await();
+            try {
+                HttpResponse<String> blocked = client.send(HttpRequest.newBuilder(URI.create(base + "/exercises"))
+                        .GET().build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals("A request waited past its deadline", 503, blocked.statusCode());
+            } finally {
+                release.countDown();
+            }
+            staff.get();
+
+            HttpResponse<String> exercises = client.send(HttpRequest.newBuilder(URI.create(base + "/exercises"))
+                    .GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, exercises.statusCode());
+        }
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void http_endpoints() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        User user = db.getUser(1);
+        String pass = db.getPassword(1);
+        Exercise ex = db.getExercise(1);
+
+        try (ApiServer server = new ApiServer(smarticulous, 0)) {
+            server.start();
+            String base = "http://localhost:" + server.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+
+            HttpResponse<String> login = client.send(HttpRequest.newBuilder(URI.create(base + "/login"))
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            "{\"username\":\"" + user.username + "\",\"password\":\"" + pass + "\"}"))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, login.statusCode());
+            assertTrue("Valid login rejected over HTTP", login.body().contains("true"));
+
+            HttpResponse<String> exercises = client.send(HttpRequest.newBuilder(URI.create(base + "/exercises"))
+                    .GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, exercises.statusCode());
+            assertTrue(exercises.body().startsWith("["));
+
+            StringBuilder grades = new StringBuilder();
+            for (int i = 0; i < ex.questions.size(); ++i)
+                grades.append(i == 0 ? "" : ",").append(i);
+            // Writes need the user's password
+            for (String credential : new String[] { "", ",\"password\":\"" + pass + "x\"" }) {
+                HttpResponse<String> denied = client.send(HttpRequest.newBuilder(URI.create(base + "/submissions"))
+                        .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"" + user.username + "\""
+                                + credential + ",\"exerciseId\":" + ex.id + ",\"grades\":[" + grades + "]}"))
+                        .build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals("Unauthenticated write accepted", 401, denied.statusCode());
+            }
+
+            HttpResponse<String> stored = client.send(HttpRequest.newBuilder(URI.create(base + "/submissions"))
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"" + user.username
+                            + "\",\"password\":\"" + pass + "\",\"exerciseId\":" + ex.id
+                            + ",\"grades\":[" + grades + "]}"))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(201, stored.statusCode());
+
+            HttpResponse<String> last = client.send(HttpRequest.newBuilder(URI.create(base
+                    + "/submissions/last?username=" + user.username + "&exerciseId=" + ex.id))
+                    .GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, last.statusCode());
+            String storedId = stored.body().replaceAll("[{}]", "");
+            assertTrue("Stored submission isn't the latest", last.body().startsWith("{" + storedId + ","));
+        }
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void http_badRequests() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        User user = db.getUser(1);
+        String pass = db.getPassword(1);
+        Exercise ex = db.getExercise(1);
+
+        try (ApiServer server = new ApiServer(smarticulous, 0)) {
+            server.start();
+            URI submissions = URI.create("http://localhost:" + server.getPort() + "/submissions");
+            HttpClient client = HttpClient.newHttpClient();
+            List<String> bodies = List.of(
+                    // Deep enough to overflow a recursive parser's stack
+                    "[".repeat(100000),
+                    "{\"username\":\"" + "x".repeat(100000) + "\"}",
+                    "{\"username\":\"" + user.username + "\",\"password\":\"" + pass
+                            + "\",\"exerciseId\":-1,\"grades\":[]}",
+                    "{\"username\":\"" + user.username + "\",\"password\":\"" + pass
+                            + "\",\"exerciseId\":" + ex.id + ",\"grades\":["
+                            + "1,".repeat(ex.questions.size()) + "1]}");
+            for (String body : bodies) {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(submissions)
+                        .POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                assertEquals("Bad request " + body.substring(0, Math.min(60, body.length())) + " wasn't rejected",
+                        400, response.statusCode());
+            }
+        }
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void changeFeed_callerTransaction() throws Exception {
+        ChangeFeed feed = new ChangeFeed(100, 60_000);
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.setChangeFeed(feed);
+
+        // Writes inside a caller's transaction that rolls back leave no trace
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        Exercise ex = createRandomExercise();
+        smarticulous.db.setAutoCommit(false);
+        assertTrue(smarticulous.addOrUpdateUser(user, getRandomString(10)) > 0);
+        assertEquals(ex.id, smarticulous.addExercise(ex));
+        smarticulous.db.rollback();
+        smarticulous.db.setAutoCommit(true);
+        assertNull("Rolled back exercise is still there", smarticulous.loadExercise(ex.id));
+        assertFalse(smarticulous.verifyLogin(user.username, "x"));
+        assertTrue("Uncommitted writes were published", smarticulous.readChanges(0, 10).isEmpty());
+
+        // Committed writes are published once each
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        smarticulous.addExercise(ex);
+        assertEquals(2, smarticulous.readChanges(0, 10).size());
+
+        smarticulous.closeDB();
+        feed.close();
+    }
+
+    @Test
+    public void changeFeed_readAndReload() throws Exception {
+        File log = File.createTempFile("changes", ".log");
+        log.delete();
+        try {
+            ChangeFeed feed = new ChangeFeed(100, 60_000, log.toPath());
+            List<Change> heard = new ArrayList<>();
+            feed.addListener(heard::add);
+
+            smarticulous.openDB(db.getDbUrl());
+            smarticulous.setChangeFeed(feed);
+
+            User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            int uid = smarticulous.addOrUpdateUser(user, getRandomString(10));
+            Exercise ex = createRandomExercise();
+            smarticulous.addExercise(ex);
+            int sid = smarticulous.storeSubmission(new Submission(user, ex, new Date(), new float[ex.questions.size()]));
+            smarticulous.closeDB();
+
+            List<Change> changes = smarticulous.readChanges(0, 10);
+            assertEquals(3, changes.size());
+            assertEquals(Change.Type.USER, changes.get(0).type);
+            assertEquals(uid, changes.get(0).id);
+            assertEquals(Change.Type.EXERCISE, changes.get(1).type);
+            assertEquals(Change.Type.SUBMISSION, changes.get(2).type);
+            assertEquals(sid, changes.get(2).id);
+            assertEquals("Listener wasn't called for every change", 3, heard.size());
+            assertEquals("Deltas should skip processed changes", 1, feed.readChanges(2, 10).size());
+            feed.close();
+
+            // The log is reloaded with its sequence numbers
+            ChangeFeed reloaded = new ChangeFeed(100, 60_000, log.toPath());
+            assertEquals(3, reloaded.getLatestSequence());
+            assertEquals(user.username, reloaded.readChanges(0, 1).get(0).username);
+            reloaded.close();
+
+            // With zero retention, trimming drops everything
+            ChangeFeed expired = new ChangeFeed(100, -1, log.toPath());
+            assertEquals(3, expired.trim());
+            assertTrue(expired.readChanges(0, 10).isEmpty());
+            expired.close();
+        } finally {
+            log.delete();
+        }
+    }
+
+    /**
+     * Listeners see every change once, in sequence order, even with concurrent appends.
+     */
+    @Test
+    public void changeFeed_listenersInOrder() throws Exception {
+        ChangeFeed feed = new ChangeFeed(16, 60_000);
+        List<Long> delivered = new ArrayList<>();
+        feed.addListener(change -> delivered.add(change.sequence));
+        int threads = 8;
+        int perThread = 1000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; ++i)
+                        feed.append(Change.Type.SUBMISSION, i, "user", 1);
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(threads * perThread, delivered.size());
+        for (int i = 0; i < delivered.size(); ++i)
+            assertEquals("Change delivered out of order", i + 1, (long) delivered.get(i));
+    }
+
+    @Test
+    public void changeFeed_sequencesNeverReused() throws Exception {
+        File log = File.createTempFile("changes", ".log");
+        log.delete();
+        try {
+            ChangeFeed feed = new ChangeFeed(100, -1, log.toPath());
+            for (int i = 1; i <= 3; ++i)
+                feed.append(Change.Type.USER, i, "user" + i, -1);
+            assertEquals(3, feed.trim());
+            feed.close();
+
+            // Everything was trimmed, but the feed continues after the last sequence
+            ChangeFeed reloaded = new ChangeFeed(100, -1, log.toPath());
+            assertEquals(3, reloaded.getLatestSequence());
+            assertEquals(4, reloaded.append(Change.Type.USER, 4, "user4", -1).sequence);
+            reloaded.close();
+
+            // A torn line from a crash is cut off, so later appends are read back
+            Files.writeString(log.toPath(), "5\t12", StandardOpenOption.APPEND);
+            ChangeFeed recovered = new ChangeFeed(100, 60_000, log.toPath());
+            assertEquals(4, recovered.getLatestSequence());
+            assertEquals(5, recovered.append(Change.Type.USER, 5, "user5", -1).sequence);
+            recovered.close();
+
+            ChangeFeed again = new ChangeFeed(100, 60_000, log.toPath());
+            assertEquals("Append after a torn line was lost", 5, again.getLatestSequence());
+            List<Change> changes = again.readChanges(0, 10);
+            assertEquals(2, changes.size());
+            assertEquals("user5", changes.get(1).username);
+            again.close();
+        } finally {
+            log.delete();
+        }
+    }
+
+    @Test
+    public void search_exercises() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.enableSearch();
+
+        Exercise ex = createRandomExercise();
+        ex.name = "Recursion basics";
+        ex.addQuestion("Towers", "Solve the towers of Hanoi recursively", 10);
+        smarticulous.addExercise(ex);
+
+        List<SearchResult> results = smarticulous.searchExercises("hanoi", 10);
+        assertEquals("Question description wasn't indexed", 1, results.size());
+        assertEquals(ex.id, results.get(0).exerciseId);
+        assertEquals(ex.questions.size(), results.get(0).questionId);
+        assertTrue("Snippet doesn't mark the match", results.get(0).snippet.contains("[Hanoi]"));
+
+        assertEquals(ex.id, smarticulous.searchExercises("recurs", 10).get(0).exerciseId);
+
+        // Words may be spread over the exercise name and its questions
+        results = smarticulous.searchExercises("basics towers", 10);
+        assertEquals("Query split between name and question didn't match", 1, results.size());
+        assertEquals(ex.id, results.get(0).exerciseId);
+        assertEquals("No single question matches the whole query", 0, results.get(0).questionId);
+
+        // An exercise with several matching questions is one result
+        Exercise pegs = createRandomExercise();
+        pegs.id = ex.id + 1;
+        pegs.addQuestion("Pegs", "Count the pegs in a pegboard", 5);
+        pegs.addQuestion("More pegs", "Count the pegs again", 5);
+        smarticulous.addExercise(pegs);
+        results = smarticulous.searchExercises("pegs", 10);
+        assertEquals("Exercise was returned once per matching question", 1, results.size());
+        assertEquals(pegs.id, results.get(0).exerciseId);
+        assertTrue("Result wasn't pointed at a matching question", results.get(0).questionId != 0);
+
+        assertTrue("Search text must not be parsed as FTS syntax",
+                smarticulous.searchExercises("\"OR NEAR(", 10).isEmpty());
+
+        // Exercises are ranked over their documents only, so bm25 doesn't count
+        // question text twice
+        try (PreparedStatement stmt = smarticulous.db.prepareStatement(
+                "SELECT (SELECT COUNT(*) FROM ExerciseSearch), (SELECT COUNT(*) FROM Exercise)");
+                java.sql.ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            assertEquals("The ranked table holds more than one row per exercise", rs.getLong(2), rs.getLong(1));
+        }
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void cache_readYourWrites() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        LatestSubmissionCache cache = new LatestSubmissionCache(100);
+        smarticulous.setLatestSubmissionCache(cache);
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = db.getExercise(1);
+
+        assertNull(smarticulous.getLastSubmission(user, ex));
+        float[] grades = new float[ex.questions.size()];
+        int first = smarticulous.storeSubmission(new Submission(user, ex, new Date(), grades));
+        assertEquals("A cached 'no submission' hid the new one", first, smarticulous.getLastSubmission(user, ex).id);
+        int second = smarticulous.storeSubmission(new Submission(user, ex, new Date(), grades));
+        assertEquals(second, smarticulous.getLastSubmission(user, ex).id);
+        // A backdated submission doesn't become the latest
+        smarticulous.storeSubmission(new Submission(user, ex, new Date(0), grades));
+        assertEquals(second, smarticulous.getLastSubmission(user, ex).id);
+        assertTrue("Refreshes weren't served from the cache", cache.getHits() >= 2);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void cache_matchesDB() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.setLatestSubmissionCache(new LatestSubmissionCache(100));
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = db.getExercise(1);
+        int first = smarticulous.storeSubmission(new Submission(user, ex, new Date(), new float[ex.questions.size()]));
+
+        // A submission written inside a caller's transaction that rolls back is never cached
+        smarticulous.db.setAutoCommit(false);
+        smarticulous.storeSubmission(new Submission(user, ex, new Date(), new float[ex.questions.size()]));
+        smarticulous.db.rollback();
+        smarticulous.db.setAutoCommit(true);
+        assertEquals("Rolled back submission was cached", first, smarticulous.getLastSubmission(user, ex).id);
+
+        // Grades are cached with the DB's question count, even for a stub exercise
+        Exercise stub = new Exercise(ex.id, ex.name, ex.dueDate);
+        smarticulous.storeSubmission(new Submission(user, stub, new Date(), new float[] { 1 }));
+        float[] grades = smarticulous.getLastSubmission(user, ex).questionGrades;
+        assertEquals(ex.questions.size(), grades.length);
+        assertEquals(1, grades[0], 0);
+
+        smarticulous.closeDB();
+    }
+
+    /**
+     * Writers store ever newer submissions while readers race cache fills against
+     * them; a writer must always read back at least its own latest write.
+     */
+    @Test
+    public void cache_concurrentCoherence() throws Exception {
+        LatestSubmissionCache cache = new LatestSubmissionCache(8); // small, to force evictions
+        ConcurrentHashMap<String, Submission> table = new ConcurrentHashMap<>(); // stands in for the DB
+        Exercise ex = new Exercise(1, "ex", new Date());
+        int users = 16;
+        int rounds = 2000;
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int u = 0; u < users; ++u) {
+                User user = new User("user" + u, "First", "Last");
+                futures.add(pool.submit(() -> {
+                    for (int i = 1; i <= rounds; ++i) {
+                        Submission sub = new Submission(i, user, ex, new Date(i), new float[0]);
+                        table.put(user.username, sub);
+                        cache.stored(sub);
+                        Submission seen = readThrough(cache, table, user.username, ex.id);
+                        assertTrue("Read " + seen.id + " after writing " + i, seen.id >= i);
+                    }
+                    return null;
+                }));
+                // A reader of the same user, filling the cache concurrently with the writer
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < rounds; ++i)
+                        readThrough(cache, table, user.username, ex.id);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue("Cache exceeded its bound", cache.size() <= 8);
+    }
+
+    @Test
+    public void archive_superseded() throws Exception {
+        // A DB with only this test's submissions, so that all superseded ones are known
+        db.close();
+        if (tmpdb != null)
+            tmpdb.delete();
+        tmpdb = db.open(null);
+        smarticulous.openDB(db.getDbUrl());
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = new Exercise(1, db.getRandomWord(), new Date());
+        ex.addQuestion(db.getRandomWord(), db.getRandomDesc(), 1);
+        ex.addQuestion(db.getRandomWord(), db.getRandomDesc(), 10);
+        smarticulous.addExercise(ex);
+
+        // Weighted totals 0, 30, 5, 2: the second is the best (though the third has
+        // the highest raw sum) and the fourth the latest
+        float[][] grades = { { 0, 0 }, { 0, 3 }, { 5, 0 }, { 2, 0 } };
+        int[] ids = new int[grades.length];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < grades.length; ++i)
+            ids[i] = smarticulous.storeSubmission(new Submission(user, ex, new Date(now + i * 1000), grades[i]));
+
+        File archive = File.createTempFile("archive", ".sqlite");
+        archive.delete();
+        try {
+            smarticulous.attachArchive(archive.getPath());
+            assertEquals("Wrong number of superseded submissions", 2, smarticulous.archiveSupersededSubmissions(1));
+            assertEquals("Nothing should be left to archive", 0, smarticulous.archiveSupersededSubmissions(1));
+
+            assertEquals(ids[3], smarticulous.getLastSubmission(user, ex).id);
+            assertEquals(ids[1], smarticulous.getBestSubmission(user, ex).id);
+
+            // Archived ids are never handed out again
+            Submission reused = new Submission(user, ex, new Date(now), new float[ex.questions.size()]);
+            reused.id = ids[0];
+            try {
+                smarticulous.storeSubmission(reused);
+                fail("An archived submission id was reused");
+            } catch (SQLException e) {
+                // expected
+            }
+
+            // The history still has every submission, with grades, newest first
+            SubmissionPage page = smarticulous.getSubmissionHistory(user, ex, null, 10);
+            assertEquals("History lost archived submissions", grades.length, page.submissions.size());
+            for (int i = 0; i < grades.length; ++i) {
+                Submission sub = page.submissions.get(grades.length - 1 - i);
+                assertEquals(ids[i], sub.id);
+                assertArrayEquals("Archived grades weren't read back", grades[i], sub.questionGrades, 0f);
+            }
+
+            smarticulous.detachArchive();
+            assertEquals("Archived submissions shouldn't be visible after detaching", 2,
+                    smarticulous.getSubmissionHistory(user, ex, null, 10).submissions.size());
+        } finally {
+            smarticulous.closeDB();
+            archive.delete();
+        }
+    }
+
+    @Test
+    public void usernameFilter_falsePositiveRate() {
+        UsernameFilter filter = new UsernameFilter(10000, 0.01);
+        for (int i = 0; i < 10000; ++i)
+            filter.add("user" + i);
+        for (int i = 0; i < 10000; ++i)
+            assertTrue("Filter has a false negative", filter.mightContain("user" + i));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; ++i) {
+            if (filter.mightContain("other" + i))
+                ++falsePositives;
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 2000);
+        assertEquals("Estimate is far from the target", 0.01, filter.getFalsePositiveRate(), 0.005);
+        assertTrue("Filter is larger than expected: " + filter.getMemoryBytes(), filter.getMemoryBytes() < 16 * 1024);
+    }
+
+    @Test
+    public void usernameFilter_rejectsUnknownUsers() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.enableUsernameFilter(0.01);
+
+        // Users that existed before the filter was built, and users added afterwards
+        User existing = db.getUser(rand.nextInt(db.getNumUsers()) + 1);
+        User added = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        String password = getRandomString(10);
+        smarticulous.addOrUpdateUser(added, password);
+
+        UsernameFilter filter = smarticulous.getUsernameFilter();
+        assertTrue(filter.mightContain(existing.username));
+        assertTrue(smarticulous.verifyLogin(added.username, password));
+
+        User unknown = new User(getRandomString(12), db.getRandomWord(), db.getRandomWord());
+        assertFalse(smarticulous.verifyLogin(unknown.username, password));
+        assertEquals(-1, smarticulous.storeSubmission(new Submission(unknown, db.getExercise(1), new Date(), new float[0])));
+        assertTrue("Unknown usernames weren't rejected by the filter", filter.getRejected() > 0);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void gradeSketch_accuracy() {
+        // A skewed distribution, as grade totals usually are
+        int n = 100000;
+        double[] values = new double[n];
+        GradeSketch sketch = new GradeSketch();
+        GradeSketch left = new GradeSketch();
+        GradeSketch right = new GradeSketch();
+        for (int i = 0; i < n; ++i) {
+            values[i] = 100 * Math.sqrt(rand.nextDouble());
+            sketch.update(values[i]);
+            (i % 2 == 0 ? left : right).update(values[i]);
+        }
+        left.merge(right);
+        GradeSketch restored = GradeSketch.fromBytes(sketch.toBytes());
+        Arrays.sort(values);
+
+        assertEquals(n, sketch.getCount());
+        assertEquals(n, left.getCount());
+        assertTrue("Sketch retains too many items: " + sketch.getRetained(), sketch.getRetained() < 3 * GradeSketch.DEFAULT_K);
+        assertEquals(values[0], sketch.quantile(0), 0);
+        assertEquals(values[n - 1], sketch.quantile(1), 0);
+        for (double q = 0.01; q < 1; q += 0.01) {
+            for (GradeSketch s : new GradeSketch[] { sketch, left }) {
+                // Rank of the estimate in the exact sorted values
+                int rank = Arrays.binarySearch(values, s.quantile(q));
+                assertTrue("Estimate isn't one of the values", rank >= 0);
+                assertEquals("Rank error too large at q=" + q, q, (double) rank / n, 0.02);
+            }
+            assertEquals("Serialization changed the sketch", sketch.quantile(q), restored.quantile(q), 0);
+        }
+    }
+
+    @Test
+    public void gradeSketch_storeAndReload() throws Exception {
+        Exercise ex = createRandomExercise();
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.addExercise(ex);
+        smarticulous.enableGradeSketches();
+        long before = smarticulous.getGradeSketch(ex).getCount();
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        for (int i = 0; i < 100; ++i) {
+            float[] grades = new float[ex.questions.size()];
+            grades[0] = 1000 + i;
+            smarticulous.storeSubmission(new Submission(user, ex, new Date(), grades));
+        }
+        assertEquals(before + 100, smarticulous.getGradeSketch(ex).getCount());
+        // Totals are weighted by points
+        assertEquals("Maximum should be exact", 1099.0 * ex.questions.get(0).points,
+                smarticulous.getGradeQuantile(ex, 1), 1e-3);
+
+        // Saved on close and loaded on demand after reopening
+        smarticulous.closeDB();
+        smarticulous.openDB(db.getDbUrl());
+        assertEquals(before + 100, smarticulous.getGradeSketch(ex).getCount());
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void gradeSketch_followsDB() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        Exercise ex = db.getExercise(1);
+        smarticulous.enableGradeSketches();
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+
+        Submission high = new Submission(user, ex, new Date(), new float[ex.questions.size()]);
+        high.id = 1000000;
+        smarticulous.storeSubmission(high);
+        long count = smarticulous.getGradeSketch(ex).getCount();
+        smarticulous.closeDB();
+
+        // An explicit id below the saved sketch's watermark is still counted after a reload
+        smarticulous.openDB(db.getDbUrl());
+        Submission low = new Submission(user, ex, new Date(), new float[ex.questions.size()]);
+        low.id = 500000;
+        smarticulous.storeSubmission(low);
+        assertEquals("Out-of-order id was missed", count + 1, smarticulous.getGradeSketch(ex).getCount());
+
+        // Archived submissions are no longer counted
+        File archive = File.createTempFile("archive", ".sqlite");
+        archive.delete();
+        try {
+            smarticulous.attachArchive(archive.getPath());
+            smarticulous.archiveSupersededSubmissions(100);
+            long remaining;
+            try (PreparedStatement stmt = smarticulous.db.prepareStatement(
+                    "SELECT COUNT(*) FROM main.Submission WHERE ExerciseId = ?")) {
+                stmt.setInt(1, ex.id);
+                try (java.sql.ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    remaining = rs.getLong(1);
+                }
+            }
+            assertEquals("Archived submissions are still counted", remaining,
+                    smarticulous.getGradeSketch(ex).getCount());
+        } finally {
+            smarticulous.closeDB();
+            archive.delete();
+        }
+    }
+
+    @Test
+    public void submission_lastSubmissionsBatch() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        List<Exercise> exercises = new ArrayList<>();
+        for (int i = 1; i <= Math.min(3, db.getNumExercises()); ++i)
+            exercises.add(db.getExercise(i));
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            smarticulous.addOrUpdateUser(user, getRandomString(10));
+            users.add(user);
+        }
+
+        // The last user submits nothing; the others submit every exercise but the first twice
+        long now = System.currentTimeMillis();
+        for (User user : users.subList(0, 2)) {
+            for (Exercise ex : exercises.subList(1, exercises.size())) {
+                for (int i = 0; i < 2; ++i) {
+                    float[] grades = new float[ex.questions.size()];
+                    for (int q = 0; q < grades.length; ++q)
+                        grades[q] = rand.nextFloat();
+                    smarticulous.storeSubmission(new Submission(user, ex, new Date(now + i * 1000), grades));
+                }
+            }
+        }
+
+        Map<String, Map<Integer, Submission>> all = smarticulous.getLastSubmissions(users, exercises);
+        assertFalse("User without submissions shouldn't be present", all.containsKey(users.get(2).username));
+        for (User user : users.subList(0, 2)) {
+            Map<Integer, Submission> latest = smarticulous.getLastSubmissions(user, exercises);
+            assertEquals(latest.keySet(), all.get(user.username).keySet());
+            assertFalse("Unsubmitted exercise shouldn't be present", latest.containsKey(exercises.get(0).id));
+            for (Exercise ex : exercises.subList(1, exercises.size())) {
+                Submission expected = smarticulous.getLastSubmission(user, ex);
+                Submission actual = latest.get(ex.id);
+                assertEquals(expected.id, actual.id);
+                assertEquals(expected.submissionTime, actual.submissionTime);
+                assertArrayEquals(expected.questionGrades, actual.questionGrades, 0f);
+                assertArrayEquals(expected.questionGrades, all.get(user.username).get(ex.id).questionGrades, 0f);
+            }
+        }
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void snapshot_readOnly() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = db.getExercise(1);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; ++i) {
+            float[] grades = new float[ex.questions.size()];
+            grades[0] = i == 1 ? 10 : i;
+            smarticulous.storeSubmission(new Submission(user, ex, new Date(now + i * 1000), grades));
+        }
+        List<Exercise> exercises = smarticulous.loadExercises();
+        Submission last = smarticulous.getLastSubmission(user, ex);
+        Submission best = smarticulous.getBestSubmission(user, ex);
+
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            assertTrue(smarticulous.exportSnapshot(file.toPath()) > 0);
+            smarticulous.closeDB();
+
+            Smarticulous replica = new Smarticulous();
+            replica.openSnapshot(file.toPath());
+            assertTrue(replica.isReadOnly());
+
+            List<Exercise> loaded = replica.loadExercises();
+            assertEquals(exercises.size(), loaded.size());
+            for (int i = 0; i < exercises.size(); ++i) {
+                assertEquals(exercises.get(i).id, loaded.get(i).id);
+                assertEquals(exercises.get(i).name, loaded.get(i).name);
+                assertEquals(exercises.get(i).dueDate, loaded.get(i).dueDate);
+                assertEquals(exercises.get(i).questions.size(), loaded.get(i).questions.size());
+            }
+
+            for (Submission[] pair : new Submission[][] {
+                    { last, replica.getLastSubmission(user, ex) },
+                    { best, replica.getBestSubmission(user, ex) } }) {
+                assertEquals(pair[0].id, pair[1].id);
+                assertEquals(pair[0].submissionTime, pair[1].submissionTime);
+                assertArrayEquals(pair[0].questionGrades, pair[1].questionGrades, 0f);
+            }
+            User unknown = new User(getRandomString(12), db.getRandomWord(), db.getRandomWord());
+            assertNull(replica.getLastSubmission(unknown, ex));
+
+            try {
+                replica.storeSubmission(new Submission(user, ex, new Date(), new float[0]));
+                fail("A read-only snapshot accepted a submission");
+            } catch (SQLException e) {
+                // expected
+            }
+            try {
+                replica.getSubmissionHistory(user, ex, null, 10);
+                fail("A read-only snapshot served the submission history");
+            } catch (SQLException e) {
+                // expected
+            }
+            assertEquals(last.id, replica.getLastSubmissions(user, List.of(ex)).get(ex.id).id);
+
+            // A replica can back the HTTP API
+            try (ApiServer server = new ApiServer(replica, 0)) {
+                server.start();
+                HttpClient client = HttpClient.newHttpClient();
+                for (String kind : new String[] { "last", "best" }) {
+                    Submission expected = kind.equals("last") ? last : best;
+                    HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(
+                            "http://localhost:" + server.getPort() + "/submissions/" + kind
+                                    + "?username=" + user.username + "&exerciseId=" + ex.id))
+                            .GET().build(), HttpResponse.BodyHandlers.ofString());
+                    assertEquals(200, response.statusCode());
+                    assertTrue("Replica served the wrong submission: " + response.body(),
+                            response.body().startsWith("{\"id\":" + expected.id + ","));
+                }
+            }
+            replica.closeDB();
+
+            // A grade ref pointing past the data section is rejected when opening
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            java.nio.ByteBuffer corrupt = java.nio.ByteBuffer.wrap(bytes);
+            corrupt.putInt(corrupt.getInt(32) + 32, Integer.MAX_VALUE - 8);
+            Files.write(file.toPath(), bytes);
+            try {
+                new Smarticulous().openSnapshot(file.toPath());
+                fail("A snapshot with an out-of-bounds ref was opened");
+            } catch (java.io.IOException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void regrade_changeQuestionPoints() throws Exception {
+        Exercise ex = createRandomExercise();
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.addExercise(ex);
+        smarticulous.setLatestSubmissionCache(new LatestSubmissionCache(16));
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        float[] grades = new float[ex.questions.size()];
+        for (int i = 0; i < grades.length; ++i)
+            grades[i] = i + 1;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; ++i)
+            smarticulous.storeSubmission(new Submission(user, ex, new Date(now + i * 1000), grades));
+        // Fill the cache, so the regrade has to invalidate it
+        smarticulous.getLastSubmission(user, ex);
+
+        int[] newPoints = new int[ex.questions.size()];
+        float[] expected = new float[grades.length];
+        for (int i = 0; i < newPoints.length; ++i) {
+            int oldPoints = ex.questions.get(i).points;
+            newPoints[i] = oldPoints * 2;
+            expected[i] = oldPoints == 0 ? grades[i] : grades[i] * 2;
+        }
+        List<Long> reported = new ArrayList<>();
+        long regraded = smarticulous.changeQuestionPoints(ex, newPoints, 2, (done, total) -> {
+            assertEquals(5, total);
+            reported.add(done);
+        });
+
+        assertEquals(5, regraded);
+        assertEquals("Progress should be reported per chunk", List.of(2L, 4L, 5L), reported);
+        assertArrayEquals("Cached grades weren't invalidated", expected,
+                smarticulous.getLastSubmission(user, ex).questionGrades, 1e-5f);
+        assertArrayEquals(expected, smarticulous.getBestSubmission(user, ex).questionGrades, 1e-5f);
+        Exercise reloaded = smarticulous.loadExercise(ex.id);
+        for (int i = 0; i < newPoints.length; ++i)
+            assertEquals(newPoints[i], reloaded.questions.get(i).points);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void regrade_resumesOnce() throws Exception {
+        Exercise ex = createRandomExercise();
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.addExercise(ex);
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        float[] grades = new float[ex.questions.size()];
+        Arrays.fill(grades, 1);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; ++i)
+            smarticulous.storeSubmission(new Submission(user, ex, new Date(now + i * 1000), grades));
+
+        int[] newPoints = new int[ex.questions.size()];
+        for (int i = 0; i < newPoints.length; ++i)
+            newPoints[i] = ex.questions.get(i).points * 3;
+        try {
+            smarticulous.changeQuestionPoints(ex, newPoints, 2, (done, total) -> {
+                throw new IllegalStateException("interrupted after " + done);
+            });
+            fail("The progress callback's exception was swallowed");
+        } catch (IllegalStateException e) {
+            // expected: the first chunk is committed
+        }
+        assertEquals("Points weren't written with the first chunk", newPoints[0],
+                smarticulous.loadExercise(ex.id).questions.get(0).points);
+        File state = new File(tmpdb.getPath() + ExerciseRegrade.FILE_SUFFIX);
+        assertTrue("The pending regrade's state wasn't kept", state.exists());
+        try {
+            smarticulous.rescaleGrades(ex, new double[] { 2 }, 2, null);
+            fail("A different regrade ran while one was pending");
+        } catch (SQLException e) {
+            // expected
+        }
+
+        assertEquals("Resumed regrade didn't skip the finished chunk", 3,
+                smarticulous.changeQuestionPoints(ex, newPoints, 2, null));
+        SubmissionPage page = smarticulous.getSubmissionHistory(user, ex, null, 10);
+        assertEquals(5, page.submissions.size());
+        for (Submission sub : page.submissions)
+            assertEquals("Grades weren't rescaled exactly once", 3, sub.questionGrades[0], 1e-5f);
+        assertFalse("The finished regrade's state wasn't deleted", state.exists());
+        // Finished, so the same points are a new (no-op) regrade of all submissions
+        assertEquals(5, smarticulous.changeQuestionPoints(ex, newPoints, 2, null));
+        assertEquals(3, smarticulous.getLastSubmission(user, ex).questionGrades[0], 1e-5f);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void transactions_callersTransactionIsRespected() throws Exception {
+        Exercise ex = createRandomExercise();
+        Connection conn = smarticulous.openDB(db.getDbUrl());
+        smarticulous.addExercise(ex);
+        smarticulous.enableGradeSketches();
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        smarticulous.getGradeSketch(ex);
+        smarticulous.storeSubmission(new Submission(user, ex, new Date(), new float[ex.questions.size()]));
+
+        conn.setAutoCommit(false);
+        try {
+            smarticulous.rescaleGrades(ex, new double[] { 2 }, 10, null);
+            fail("A regrade ran within the caller's transaction");
+        } catch (SQLException e) {
+            // expected
+        }
+        try {
+            smarticulous.enableSearch();
+            fail("Search was enabled within the caller's transaction");
+        } catch (SQLException e) {
+            // expected
+        }
+        // Joins the caller's transaction, which is still open afterwards
+        smarticulous.flushGradeSketches();
+        assertFalse("The caller's transaction was ended", conn.getAutoCommit());
+        conn.rollback();
+        conn.setAutoCommit(true);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void regrade_restoresArchivedBest() throws Exception {
+        // A DB with only this test's submissions, so that all superseded ones are known
+        db.close();
+        if (tmpdb != null)
+            tmpdb.delete();
+        tmpdb = db.open(null);
+        smarticulous.openDB(db.getDbUrl());
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = new Exercise(1, db.getRandomWord(), new Date());
+        ex.addQuestion(db.getRandomWord(), db.getRandomDesc(), 1);
+        ex.addQuestion(db.getRandomWord(), db.getRandomDesc(), 1);
+        smarticulous.addExercise(ex);
+
+        // The first is the best and the third the latest, so the second is archived
+        float[][] grades = { { 10, 0 }, { 0, 5 }, { 0, 0 } };
+        int[] ids = new int[grades.length];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < grades.length; ++i)
+            ids[i] = smarticulous.storeSubmission(new Submission(user, ex, new Date(now + i * 1000), grades[i]));
+
+        File archive = File.createTempFile("archive", ".sqlite");
+        archive.delete();
+        try {
+            smarticulous.attachArchive(archive.getPath());
+            assertEquals(1, smarticulous.archiveSupersededSubmissions(10));
+
+            // Totals become 1, 50 and 0: the archived submission is the best again
+            assertEquals(3, smarticulous.rescaleGrades(ex, new double[] { 0.1, 10 }, 2, null));
+            Submission best = smarticulous.getBestSubmission(user, ex);
+            assertEquals("The archived best wasn't restored", ids[1], best.id);
+            assertArrayEquals(new float[] { 0, 50 }, best.questionGrades, 1e-5f);
+            assertEquals(3, smarticulous.getSubmissionHistory(user, ex, null, 10).submissions.size());
+
+            // And the former best is superseded now
+            assertEquals(1, smarticulous.archiveSupersededSubmissions(10));
+            assertEquals(ids[1], smarticulous.getBestSubmission(user, ex).id);
+        } finally {
+            smarticulous.closeDB();
+            archive.delete();
+        }
+    }
+
+    @Test
+    public void operations_deadlineWhileWaiting() throws Exception {
+        try (OperationRunner operations = new OperationRunner(smarticulous, 1000)) {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Integer> slow = operations.submit(5000, s -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            });
+            started.await();
+
+            try {
+                operations.call(50, s -> 2);
+                fail("An operation waiting past its deadline should time out");
+            } catch (SQLTimeoutException e) {
+                // expected
+            }
+            assertEquals(1, operations.getTimedOut());
+
+            release.countDown();
+            assertEquals(1, (int) slow.get());
+            assertEquals(3, (int) operations.call(s -> 3));
+            assertEquals(2, operations.getCompleted());
+        }
+    }
+
+    @Test
+    public void operations_cancelWhileWaiting() throws Exception {
+        try (OperationRunner operations = new OperationRunner(smarticulous, 1000)) {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Integer> slow = operations.submit(5000, s -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            });
+            started.await();
+
+            AtomicBoolean ran = new AtomicBoolean();
+            CompletableFuture<Integer> queued = operations.submit(5000, s -> {
+                ran.set(true);
+                return 2;
+            });
+            assertTrue(queued.cancel(true));
+            release.countDown();
+            slow.get();
+
+            // The cancelled operation must never run
+            assertEquals(3, (int) operations.call(s -> 3));
+            assertFalse("A cancelled operation ran", ran.get());
+            assertEquals(1, operations.getCancelled());
+        }
+    }
+
+    @Test
+    public void operations_interruptLongQuery() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        try (OperationRunner operations = new OperationRunner(smarticulous, 1000)) {
+            long start = System.nanoTime();
+            try {
+                operations.call(100, s -> {
+                    // Counts to a billion; takes far longer than the deadline
+                    try (PreparedStatement stmt = s.db.prepareStatement("WITH RECURSIVE c(x) AS " +
+                            "(SELECT 1 UNION ALL SELECT x + 1 FROM c WHERE x < 1000000000) SELECT COUNT(*) FROM c")) {
+                        return stmt.executeQuery().getLong(1);
+                    }
+                });
+                fail("The query should have been interrupted");
+            } catch (SQLTimeoutException e) {
+                // expected
+            }
+            assertTrue("Interrupt took too long", System.nanoTime() - start < 5_000_000_000L);
+            assertEquals(1, operations.getTimedOut());
+
+            // The connection is still usable
+            assertNotNull(operations.call(Smarticulous::loadExercises));
+        }
+        smarticulous.closeDB();
+    }
+
+    private static Submission readThrough(LatestSubmissionCache cache, Map<String, Submission> table,
+            String username, int exerciseId) {
+        LatestSubmissionCache.Lookup lookup = cache.lookup(username, exerciseId);
+        if (lookup.hit)
+            return lookup.submission;
+        Submission loaded = table.get(username);
+        cache.fill(username, exerciseId, lookup.generation, loaded);
+        return loaded;
+    }
 }
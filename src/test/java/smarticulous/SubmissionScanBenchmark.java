@@ -0,0 +1,98 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.SubmissionFilter;
+import smarticulous.db.SubmissionPage;
+import smarticulous.db.User;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Measures bytes allocated per submission row by {@link Smarticulous#scanSubmissions}
+ * compared with reading the same rows as {@link Submission} objects.
+ * <p>
+ * Not a unit test; run it manually, e.g. {@code java smarticulous.SubmissionScanBenchmark [submissions]}.
+ * Requires a HotSpot JVM (uses com.sun.management.ThreadMXBean).
+ */
+public class SubmissionScanBenchmark {
+
+    static final int QUESTIONS = 12;
+
+    public static void main(String[] args) throws Exception {
+        int submissions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        File file = File.createTempFile("bench-scan", ".sqlite");
+        file.delete();
+        Smarticulous smarticulous = new Smarticulous();
+        try {
+            smarticulous.openDB("jdbc:sqlite:" + file.getPath());
+
+            Exercise ex = new Exercise(1, "bench", new Date());
+            for (int q = 0; q < QUESTIONS; ++q)
+                ex.addQuestion("q" + q, "question " + q, 10);
+            smarticulous.addExercise(ex);
+            User user = new User("user", "First", "Last");
+            smarticulous.addOrUpdateUser(user, "pass");
+
+            Random rand = new Random(42);
+            smarticulous.db.setAutoCommit(false);
+            for (int i = 0; i < submissions; ++i) {
+                float[] grades = new float[QUESTIONS];
+                for (int q = 0; q < QUESTIONS; ++q)
+                    grades[q] = rand.nextFloat() * 10;
+                smarticulous.storeSubmission(new Submission(user, ex, new Date(i), grades));
+            }
+            smarticulous.db.commit();
+            smarticulous.db.setAutoCommit(true);
+
+            // Warm up both paths before measuring
+            for (int i = 0; i < 3; ++i) {
+                scan(smarticulous);
+                objects(smarticulous, user, ex);
+            }
+
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long before = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            int rows = scan(smarticulous);
+            long scanMs = (System.nanoTime() - start) / 1_000_000;
+            long scanBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+            before = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            objects(smarticulous, user, ex);
+            long objectsMs = (System.nanoTime() - start) / 1_000_000;
+            long objectBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+            System.out.println("path       rows     ms  bytes/row");
+            System.out.printf("scan    %7d %6d %10.1f%n", rows, scanMs, (double) scanBytes / rows);
+            System.out.printf("objects %7d %6d %10.1f%n", rows, objectsMs, (double) objectBytes / rows);
+        } finally {
+            smarticulous.closeDB();
+            file.delete();
+        }
+    }
+
+    static double sink;
+
+    static int scan(Smarticulous smarticulous) throws Exception {
+        return smarticulous.scanSubmissions(new SubmissionFilter(), sub -> {
+            sink += sub.total();
+            return true;
+        });
+    }
+
+    static void objects(Smarticulous smarticulous, User user, Exercise ex) throws Exception {
+        SubmissionPage.Cursor cursor = null;
+        do {
+            SubmissionPage page = smarticulous.getSubmissionHistory(user, ex, cursor, 1000);
+            for (Submission sub : page.submissions)
+                sink += sub.questionGrades[0];
+            cursor = page.next;
+        } while (cursor != null);
+    }
+}
@@ -0,0 +1,100 @@
+package smarticulous.http;
+
+import smarticulous.Smarticulous;
+import smarticulous.db.Exercise;
+import smarticulous.db.User;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures {@link ApiServer} throughput against a local client.
+ * <p>
+ * Not a unit test; run it manually, e.g.
+ * {@code java smarticulous.http.ApiServerBenchmark [requests] [clients]}.
+ * Each client runs on its own virtual thread and alternates login, exercise listing,
+ * submission and last-submission requests.
+ */
+public class ApiServerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        File file = File.createTempFile("bench-http", ".sqlite");
+        file.delete();
+        Smarticulous smarticulous = new Smarticulous();
+        smarticulous.openDB("jdbc:sqlite:" + file.getPath());
+        try (ApiServer server = new ApiServer(smarticulous, 0)) {
+            Exercise ex = new Exercise(1, "bench", new Date());
+            for (int q = 0; q < 5; ++q)
+                ex.addQuestion("q" + q, "question " + q, 10);
+            smarticulous.addExercise(ex);
+            for (int u = 0; u < clients; ++u)
+                smarticulous.addOrUpdateUser(new User("user" + u, "First", "Last"), "pass");
+            server.start();
+
+            String base = "http://localhost:" + server.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            AtomicInteger remaining = new AtomicInteger(requests);
+            AtomicInteger errors = new AtomicInteger();
+
+            long start = System.nanoTime();
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int c = 0; c < clients; ++c) {
+                    String username = "user" + c;
+                    futures.add(pool.submit(() -> {
+                        int i;
+                        while ((i = remaining.decrementAndGet()) >= 0) {
+                            HttpResponse<String> response = client.send(request(base, username, i),
+                                    HttpResponse.BodyHandlers.ofString());
+                            if (response.statusCode() >= 300 && response.statusCode() != 404)
+                                errors.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures)
+                    future.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d requests, %d clients: %.0f req/s, %d errors%n",
+                    requests, clients, requests / seconds, errors.get());
+        } finally {
+            smarticulous.closeDB();
+            file.delete();
+        }
+    }
+
+    static HttpRequest request(String base, String username, int i) {
+        switch (i % 4) {
+            case 0:
+                return HttpRequest.newBuilder(URI.create(base + "/login"))
+                        .POST(HttpRequest.BodyPublishers.ofString(
+                                "{\"username\":\"" + username + "\",\"password\":\"pass\"}"))
+                        .build();
+            case 1:
+                return HttpRequest.newBuilder(URI.create(base + "/exercises")).GET().build();
+            case 2:
+                return HttpRequest.newBuilder(URI.create(base + "/submissions"))
+                        .POST(HttpRequest.BodyPublishers.ofString(
+                                "{\"username\":\"" + username
+                                        + "\",\"password\":\"pass\",\"exerciseId\":1,\"grades\":[1,2,3,4,5]}"))
+                        .build();
+            default:
+                return HttpRequest.newBuilder(URI.create(base + "/submissions/last?username=" + username
+                        + "&exerciseId=1")).GET().build();
+        }
+    }
+}